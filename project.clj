@@ -9,4 +9,6 @@
   :repositories  {"conjars" "http://conjars.org/repo/"}
   :dev-dependencies [
 					 [lein-clojars/lein-clojars "0.6.0"]
-                     [lein-eclipse "1.0.0"]])
\ No newline at end of file
+                     [lein-eclipse "1.0.0"]
+                     [org.openjdk.jmh/jmh-core "1.37"]
+                     [org.openjdk.jmh/jmh-generator-annprocess "1.37"]])
\ No newline at end of file
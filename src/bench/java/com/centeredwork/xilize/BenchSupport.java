@@ -0,0 +1,133 @@
+/*
+ Copyright (c) 2004 - 2006 Andy Streich
+ Distributed under the GNU General Public License available at http://www.gnu.org/licenses/gpl.html,
+ a copy of which is provided with the Xilize source code.
+ */
+
+package com.centeredwork.xilize;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Shared setup for the JMH benchmarks in this directory.  The benchmarks live in
+ * the engine's package so they can reach package-private classes like
+ * BlockAssembler.
+ *
+ * <p>To build and run them (Leiningen 1 puts the JMH dev-dependencies from
+ * project.clj in lib/dev):
+ *
+ * <PRE>    lein deps
+ *    mkdir -p build/bench
+ *    javac -cp "lib/*:lib/dev/*" -d build/bench src/java/com/centeredwork/xilize/*.java \
+ *        src/bench/java/com/centeredwork/xilize/*.java
+ *    java -cp "build/bench:lib/*:lib/dev/*" org.openjdk.jmh.Main -prof gc</PRE>
+ *
+ * <CODE>-prof gc</CODE> adds allocation rates (<CODE>gc.alloc.rate.norm</CODE> is bytes
+ * per operation) to the timings.  A regular expression argument selects benchmarks,
+ * for example <CODE>InlineBench</CODE>.
+ *
+ * <p>{@link SiteGenerator} also runs from the command line to write large projects
+ * for soak tests.
+ */
+class BenchSupport {
+    
+    static final String PARAGRAPH =
+            "The _quick_ brown fox jumps over the *lazy* dog, see \"the manual\":http://example.com/manual\n"
+            + "for details.  Entities like &copy; survive, NASA and CSS(Cascading Style Sheets) are acronyms,\n"
+            + "and @code@ and ==no markup== are left alone.  Author: ${author}, footnote[1].";
+    
+    static final String PLAIN_PARAGRAPH =
+            "Most text on a site is plain prose without any markup in it at all, sentence after\n"
+            + "sentence of words, commas, and full stops, the kind of paragraph a writer produces\n"
+            + "when simply explaining something to the reader in a well-organized way.";
+    
+    static final String TABLE =
+            "table(data). {{\n"
+            + "|_. name |_. size |_. notes |\n"
+            + "| alpha | 10 | the *first* one |\n"
+            + "| beta | 200 | see \"beta\":http://example.com/beta |\n"
+            + "| gamma | 3000 | _italic_ and @code@ |\n"
+            + "| delta | 40000 | plain text cell |\n"
+            + "}}\n";
+    
+    static final String LIST =
+            "* one item with _emphasis_\n"
+            + "* two\n"
+            + "** two point one\n"
+            + "** two point two with \"a link\":http://example.com\n"
+            + "*** deeper still\n"
+            + "* three\n"
+            + "# numbered\n"
+            + "## numbered child\n";
+    
+    static final String DOCUMENT;
+    static {
+        StringBuilder sb = new StringBuilder();
+        sb.append("define. author Jane Doe\n\n");
+        sb.append("toc.\n\n");
+        for( int i=0; i<20; i++ ) {
+            sb.append("h2. Section ").append(i).append("\n\n");
+            sb.append(PARAGRAPH).append("\n\n");
+            sb.append(PLAIN_PARAGRAPH).append("\n\n");
+            sb.append(LIST).append("\n");
+            sb.append(TABLE).append("\n");
+            sb.append("bq. A quotation from someone -- with an em dash.\n\n");
+            sb.append("pre. preformatted\n    text\n\n");
+        }
+        sb.append("fn1. The footnote.\n");
+        DOCUMENT = sb.toString();
+    }
+    
+    /**
+     * a task for translating strings, reports nothing.
+     */
+    static class Document extends Xilize2 {
+        
+        Document() {
+            define("author", "Jane Doe");
+        }
+        
+        public String getPath() { return "benchmark"; }
+    }
+    
+    /**
+     * a reporter that only counts.
+     */
+    static class Quiet extends ReporterStd {
+        public void debug(Object o) {}
+        public synchronized void error(Object o) { errors++; }
+        public void report(Object o) {}
+        public synchronized void warn(Object o) { warnings++; }
+        public Reporter newInstance() { return new Quiet(); }
+    }
+    
+    /**
+     * starts Xilize with a quiet reporter.
+     */
+    static void startup() {
+        HashMap<String,String> map = new HashMap<String,String>();
+        map.put(Key._Silent_.name(), "true");
+        map.put(Key._NoWarn_.name(), "true");
+        Xilize2.startup(new Quiet(), new BeanShell(), map);
+    }
+    
+    static ArrayList<Block> rawBlocks(TaskFile task, String text) throws IOException {
+        ArrayList<Block> blocks = new ArrayList<Block>();
+        BlockReader br = new BlockReader(task, new StringReader(text));
+        Block b;
+        while( (b = br.readRawBlock()) != null ) {
+            blocks.add(b);
+        }
+        br.close();
+        return blocks;
+    }
+    
+    static Block assemble(TaskFile task, String text) throws IOException {
+        Block root = new Block();
+        new BlockAssembler(task, rawBlocks(task, text)).assemble(root);
+        return root;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ Copyright (c) 2004 - 2006 Andy Streich
+ Distributed under the GNU General Public License available at http://www.gnu.org/licenses/gpl.html,
+ a copy of which is provided with the Xilize source code.
+ */
+
+package com.centeredwork.xilize;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Block level parsing: reading raw blocks and assembling them into a parse tree.
+ * See {@link BenchSupport} for how to run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockBench {
+    
+    private BenchSupport.Document task;
+    private ArrayList<Block> rawBlocks;
+    
+    @Setup(Level.Trial)
+    public void startup() {
+        BenchSupport.startup();
+        task = new BenchSupport.Document();
+    }
+    
+    // assembling links the raw blocks into a tree, so it needs fresh ones each time
+    @Setup(Level.Invocation)
+    public void read() throws IOException {
+        rawBlocks = BenchSupport.rawBlocks(task, BenchSupport.DOCUMENT);
+    }
+    
+    @Benchmark
+    public void readRawBlocks(Blackhole bh) throws IOException {
+        BlockReader br = new BlockReader(task, new StringReader(BenchSupport.DOCUMENT));
+        Block b;
+        while( (b = br.readRawBlock()) != null ) {
+            bh.consume(b);
+        }
+    }
+    
+    @Benchmark
+    public Block assemble() {
+        Block root = new Block();
+        new BlockAssembler(task, rawBlocks).assemble(root);
+        return root;
+    }
+}
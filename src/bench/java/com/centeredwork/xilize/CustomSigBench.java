@@ -0,0 +1,69 @@
+/*
+ Copyright (c) 2004 - 2006 Andy Streich
+ Distributed under the GNU General Public License available at http://www.gnu.org/licenses/gpl.html,
+ a copy of which is provided with the Xilize source code.
+ */
+
+package com.centeredwork.xilize;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Translation of a block by a custom signature.  <CODE>returned</CODE> ends with a
+ * return statement and is compiled once, <CODE>expression</CODE> does not and is
+ * evaluated for every block.  See {@link BenchSupport} for how to run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CustomSigBench {
+    
+    private static final String SCRIPT =
+            "s = \"<div class=\\\"note\\\">\" + task.markup(text);";
+    
+    private BenchSupport.Document task;
+    private Block block;
+    private SigCustom returned;
+    private SigCustom expression;
+    
+    @Setup(Level.Trial)
+    public void startup() throws IOException, XilizeException {
+        BenchSupport.startup();
+        task = new BenchSupport.Document();
+        block = BenchSupport.assemble(task, BenchSupport.PARAGRAPH).getChildren().get(0);
+        returned = signature("returned", "return s + \"</div>\";");
+        expression = signature("expression", "s + \"</div>\";");
+    }
+    
+    private SigCustom signature(String name, String lastLine) throws XilizeException {
+        Block code = new Block(task, 1, name);
+        code.addLine(2, SCRIPT);
+        code.addLine(3, lastLine);
+        return new SigCustom(task, code);
+    }
+    
+    @Benchmark
+    public String returned() {
+        return returned.translate(task, block);
+    }
+    
+    @Benchmark
+    public String expression() {
+        return expression.translate(task, block);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ Copyright (c) 2004 - 2006 Andy Streich
+ Distributed under the GNU General Public License available at http://www.gnu.org/licenses/gpl.html,
+ a copy of which is provided with the Xilize source code.
+ */
+
+package com.centeredwork.xilize;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Inline markup of paragraph, table, and list blocks, the last two through the
+ * SigTable and SigList signatures.  See {@link BenchSupport} for how to run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InlineBench {
+    
+    private BenchSupport.Document task;
+    private Block paragraph;
+    private Block plainParagraph;
+    private Block table;
+    private Block list;
+    
+    @Setup(Level.Trial)
+    public void startup() throws IOException {
+        BenchSupport.startup();
+        task = new BenchSupport.Document();
+        paragraph = BenchSupport.assemble(task, BenchSupport.PARAGRAPH).getChildren().get(0);
+        plainParagraph = BenchSupport.assemble(task, BenchSupport.PLAIN_PARAGRAPH).getChildren().get(0);
+        table = BenchSupport.assemble(task, BenchSupport.TABLE).getChildren().get(0);
+        list = BenchSupport.assemble(task, BenchSupport.LIST).getChildren().get(0);
+    }
+    
+    @Benchmark
+    public String paragraph() {
+        return task.markup(paragraph);
+    }
+    
+    @Benchmark
+    public String plainParagraph() {
+        return task.markup(plainParagraph);
+    }
+    
+    @Benchmark
+    public String phrase() {
+        return task.markup(BenchSupport.PARAGRAPH);
+    }
+    
+    @Benchmark
+    public String table() {
+        return table.getSignature().translate(task, table);
+    }
+    
+    @Benchmark
+    public String list() {
+        return list.getSignature().translate(task, list);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ Copyright (c) 2004 - 2006 Andy Streich
+ Distributed under the GNU General Public License available at http://www.gnu.org/licenses/gpl.html,
+ a copy of which is provided with the Xilize source code.
+ */
+
+package com.centeredwork.xilize;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end translation: a document through Xilize2.xilizeBlocks() and a
+ * project made by {@link SiteGenerator} through Xilize2.xilizeProject().  See
+ * {@link BenchSupport} for how to run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SiteBench {
+    
+    // pages per directory, with depth 1 and breadth 2 the project has three directories
+    @Param({"20"})
+    public int pages;
+    
+    @Param({"1"})
+    public String threads;
+    
+    private File root;
+    
+    @Setup(Level.Trial)
+    public void startup() throws IOException {
+        BenchSupport.startup();
+        root = File.createTempFile("xilize-bench", "");
+        root.delete();
+        SiteGenerator gen = new SiteGenerator(1);
+        gen.setDepth(1);
+        gen.setBreadth(2);
+        gen.setPages(pages);
+        gen.generate(root);
+    }
+    
+    @TearDown(Level.Trial)
+    public void delete() {
+        delete(root);
+    }
+    
+    @Benchmark
+    public String xilizeBlocks() {
+        return new BenchSupport.Document().xilizeBlocks(BenchSupport.DOCUMENT);
+    }
+    
+    @Benchmark
+    public Xilize2.ExitCode xilizeProject() {
+        Xilize2 x = new Xilize2();
+        x.define(Key._Threads_, threads);
+        x.xilizeProject(root);
+        return x.translate();
+    }
+    
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if( files != null ) {
+            for( File c : files )
+                delete(c);
+        }
+        f.delete();
+    }
+}
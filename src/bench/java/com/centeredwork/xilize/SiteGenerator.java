@@ -0,0 +1,403 @@
+/*
+ Copyright (c) 2004 - 2006 Andy Streich
+ Distributed under the GNU General Public License available at http://www.gnu.org/licenses/gpl.html,
+ a copy of which is provided with the Xilize source code.
+ */
+
+package com.centeredwork.xilize;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Generates synthetic natural mode projects for load and scaling tests.  The
+ * output depends only on the seed and the size settings, so a given command
+ * line always produces the same tree.
+ *
+ * <p>The project root gets root.xilconfig (definitions, a custom signature, URL
+ * abbreviations), header, footer, and common includes, a beanshell file of
+ * macros, a style sheet, a property file, and a raw HTML fragment.  Each directory
+ * then gets a dir.xilconfig, every third one its own header and a page.xilconfig
+ * reversing its page order, and <I>pages</I> source files of random sections.
+ * The first page in the root uses every signature in the standard set.
+ *
+ * <PRE>    java -cp build/bench com.centeredwork.xilize.SiteGenerator [options] directory
+ *
+ *    -s, --seed n        random seed, default 1
+ *    -d, --depth n       levels of subdirectories below the root, default 2
+ *    -b, --breadth n     subdirectories per directory, default 3
+ *    -p, --pages n       source files per directory, default 10
+ *    -n, --sections n    sections per source file, default 12</PRE>
+ *
+ * With the defaults the project has 13 directories and 130 pages, depth 3 and
+ * breadth 4 with 20 pages gives 1700.
+ */
+public class SiteGenerator {
+    
+    private static final String[] WORDS = {
+        "the", "engine", "reads", "each", "block", "of", "text", "and", "writes",
+        "markup", "for", "a", "page", "in", "site", "with", "simple", "rules", "that",
+        "authors", "learn", "quickly", "while", "editing", "plain", "files", "on",
+        "disk", "every", "directory", "has", "its", "own", "settings", "which",
+        "apply", "to", "all", "pages", "below", "it", "so", "common", "parts",
+        "like", "headers", "are", "written", "once", "only", "when", "needed",
+    };
+    
+    private static final String[] ACRONYMS = {
+        "HTML(HyperText Markup Language)", "CSS(Cascading Style Sheets)", "XML", "NASA", "URL",
+    };
+    
+    private Random random;
+    private long seed = 1;
+    private int depth = 2;
+    private int breadth = 3;
+    private int pages = 10;
+    private int sections = 12;
+    
+    private int pageCount;
+    
+    public SiteGenerator(long seed) {
+        this.seed = seed;
+    }
+    
+    public void setDepth(int depth) { this.depth = depth; }
+    public void setBreadth(int breadth) { this.breadth = breadth; }
+    public void setPages(int pages) { this.pages = pages; }
+    public void setSections(int sections) { this.sections = sections; }
+    
+    /**
+     * writes a project.
+     * @param root project root directory, created if necessary
+     * @return number of source files written
+     * @throws java.io.IOException if a file cannot be written
+     */
+    public int generate(File root) throws IOException {
+        
+        random = new Random(seed);
+        pageCount = 0;
+        root.mkdirs();
+        
+        write(new File(root, "root.xilconfig"),
+                "define. author Jane Doe\n"
+                + "\n"
+                + "define. product Xilize\n"
+                + "\n"
+                + "define. _DirLabel_ Home\n"
+                + "\n"
+                + "signature. note\n"
+                + "\"<div class=\\\"note\\\">\" + task.markup(text) + \"</div>\";\n"
+                + "\n"
+                + "[xil]http://xilize.sourceforge.net\n"
+                + "\n"
+                + "[jd]http://java.sun.com/j2se/1.5.0/docs/api/\n");
+        write(new File(root, "header.xilinc"),
+                "p(nav). ${_DirLabelListLinked_} | \"prev\":${_Prev_} | \"next\":${_Next_}\n");
+        write(new File(root, "footer.xilinc"),
+                "p(footer). Page ${_PageNumber_} of ${_PagesTotal_}, copyright (c) ${author} -- \"${product}\":xil\n");
+        write(new File(root, "common.xilinc"),
+                "define. updated 2006-01-01\n");
+        write(new File(root, "snippet.xilinc"),
+                "p(snippet). An included paragraph by ${author} with *markup*.\n");
+        write(new File(root, "macros.bsh"),
+                "String upper() { return text.toUpperCase(); }\n"
+                + "String twice() { return text + \" \" + text; }\n");
+        write(new File(root, "default.css"),
+                "body { font-family: sans-serif; }\n.note { border: 1px solid gray; }\n");
+        write(new File(root, "site.properties"),
+                "release=3.0\nlicense=GPL\n");
+        write(new File(root, "fragment.txt"),
+                "<p class=\"raw\">raw <em>HTML</em> fragment</p>\n");
+        
+        generate(root, 0, "Home");
+        return pageCount;
+    }
+    
+    private void generate(File dir, int level, String label) throws IOException {
+        
+        if( level > 0 ) {
+            write(new File(dir, "dir.xilconfig"), "define. _DirLabel_ "+label+"\n");
+        }
+        boolean reversed = level > 0 && random.nextInt(3) == 0;
+        if( reversed ) {
+            write(new File(dir, "header.xilinc"),
+                    "h4(nav). "+label+" -- ${_DirLabelList_}\n");
+        }
+        
+        StringBuilder order = new StringBuilder();
+        for( int i=0; i<pages; i++ ) {
+            String name = i == 0 ? "index.xil" : "page"+i+".xil";
+            order.insert(0, name + " ");
+            boolean showcase = level == 0 && i == 0;
+            write(new File(dir, name), showcase ? showcase() : page(i));
+            pageCount++;
+        }
+        if( reversed ) {
+            write(new File(dir, "page.xilconfig"), order.toString().trim()+"\n");
+        }
+        
+        if( level < depth ) {
+            for( int i=1; i<=breadth; i++ ) {
+                File sub = new File(dir, "section"+i);
+                sub.mkdir();
+                generate(sub, level+1, label+" "+i);
+            }
+        }
+    }
+    
+    //__________________________________________________________________________
+    //
+    // pages
+    //__________________________________________________________________________
+    
+    private String page(int number) {
+        StringBuilder sb = new StringBuilder();
+        // natural mode: the first unsigned block is the page title
+        sb.append(capitalize(words(3))).append(' ').append(number).append("\n\n");
+        if( random.nextBoolean() )
+            sb.append("toc.\n\nh2. ").append(capitalize(words(2))).append("\n\n");
+        int footnotes = 0;
+        for( int i=0; i<sections; i++ ) {
+            int kind = random.nextInt(20);
+            if( kind == 19 ) {
+                footnotes++;
+                sb.append(sentence()).append("[").append(footnotes).append("]\n\n");
+            } else {
+                section(sb, kind);
+            }
+        }
+        for( int i=1; i<=footnotes; i++ )
+            sb.append("fn").append(i).append(". ").append(sentence()).append("\n\n");
+        return sb.toString();
+    }
+    
+    private void section(StringBuilder sb, int kind) {
+        switch( kind ) {
+            case 0: sb.append("h2. ").append(capitalize(words(4))).append("\n\n"); break;
+            case 1: sb.append("h3(minor). ").append(capitalize(words(3))).append("\n\n"); break;
+            case 2: list(sb, 0, random.nextBoolean() ? '*' : '#'); sb.append('\n'); break;
+            case 3: pipeTable(sb); break;
+            case 4: sb.append("table(data). {{\n");
+                    pipeRows(sb);
+                    sb.append("}}\n\n"); break;
+            case 5: sb.append("pre. ").append(words(5)).append("\n    ").append(words(4)).append(" <tag> & more\n\n"); break;
+            case 6: sb.append("bc. for( String s : list ) {\n    print(s);\n}\n\n"); break;
+            case 7: sb.append("bq. ").append(sentence()).append("\n\n"); break;
+            case 8: sb.append("div(box). {{\n    ").append(sentence()).append("\n\n    ")
+                    .append(sentence()).append("\n}}\n\n"); break;
+            case 9: sb.append("p(lead). ").append(sentence()).append("\n\n"); break;
+            case 10: sb.append("dl. ").append(words(1)).append(" : ").append(words(4))
+                    .append(" ; ").append(words(3)).append("\n").append(words(1))
+                    .append(" : ").append(words(5)).append("\n\n"); break;
+            case 11: sb.append("include. ${_ProjectRoot_}snippet.xilinc\n\n"); break;
+            case 12: sb.append("note. ").append(sentence()).append("\n\n"); break;
+            default: sb.append(sentence()).append('\n').append(sentence()).append("\n\n");
+        }
+    }
+    
+    /**
+     * every signature in the standard set, and the implicit list, table,
+     * abbreviation, and footnote signatures.
+     */
+    private String showcase() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("body(home).\n\n");
+        sb.append("propfile. site.properties\n\n");
+        sb.append("Showcase for ${product} ${release}\n\n");
+        sb.append("toc.\n\n");
+        for( int i=2; i<=6; i++ )
+            sb.append("h").append(i).append(". Heading level ").append(i).append("\n\n");
+        sb.append(sentence()).append(" See the manual[1].\n\n");
+        sb.append("p. ").append(sentence()).append("\n\n");
+        sb.append("raw. <span>passed through</span>\n\n");
+        sb.append("xilcom. a source comment, not written\n\n");
+        sb.append("xmlcom. an XML comment by ${author}\n\n");
+        sb.append("hr.\n\n");
+        sb.append("div(box). {{\n    ").append(sentence()).append("\n}}\n\n");
+        sb.append("divStart(legacy).\n\n").append(sentence()).append("\n\ndivEnd.\n\n");
+        sb.append("block. {{\n    ").append(sentence()).append("\n\n    ").append(sentence()).append("\n}}\n\n");
+        sb.append("bqo. {{\n    ").append(sentence()).append("\n}}\n\n");
+        sb.append("bq. ").append(sentence()).append("\n\n");
+        sb.append("pre. plain <pre> & text\n\n");
+        sb.append("prex. pre with ${author} and *markup*\n\n");
+        sb.append("bc. int i = 0;\n\n");
+        sb.append("bcx. int j = ${release};\n\n");
+        sb.append("km. keys ${author} and macros &{upper:only} but *no* markup\n\n");
+        sb.append("imo. inline _markup_ only\n\n");
+        sb.append("if. task.isDefined(\"author\") {{\n    p. written by ${author}\n\n"
+                + "    else. {{\n        p. anonymous\n    }}\n}}\n\n");
+        sb.append("ifdef. author p. defined\n\n");
+        sb.append("ifndef. nosuchkey p. not defined\n\n");
+        pipeTable(sb);
+        sb.append("table(grid). {{\n    row. {{\n        one\n\n        cell(wide). {{\n            _two_\n        }}\n    }}\n"
+                + "    row. {{\n        three\n\n        four\n    }}\n}}\n\n");
+        sb.append("dl. term : definition ; another definition\n\n");
+        list(sb, 0, '*');
+        sb.append('\n');
+        list(sb, 0, '#');
+        sb.append('\n');
+        sb.append("clear>.\n\n");
+        sb.append("javascript. document.write(\"generated\");\n\n");
+        sb.append("define. local a local value\n\n");
+        sb.append("defadd. local , appended\n\n");
+        sb.append("p. ${local}\n\n");
+        sb.append("undef. local\n\n");
+        sb.append("xilize. title Showcase\n\n");
+        sb.append("include. snippet.xilinc\n\n");
+        sb.append("includeRaw. fragment.txt\n\n");
+        sb.append("note. a custom signature\n\n");
+        sb.append("p. \"abbreviated link\":xil and \"API\":jd, license ${license}\n\n");
+        sb.append("fn1. The footnote.\n\n");
+        return sb.toString();
+    }
+    
+    //__________________________________________________________________________
+    //
+    // block parts
+    //__________________________________________________________________________
+    
+    private void list(StringBuilder sb, int level, char bullet) {
+        int items = 2 + random.nextInt(3);
+        for( int i=0; i<items; i++ ) {
+            for( int j=0; j<=level; j++ )
+                sb.append(bullet);
+            sb.append(' ').append(phrase()).append('\n');
+            if( level < 2 && random.nextInt(4) == 0 )
+                list(sb, level+1, bullet);
+        }
+    }
+    
+    private void pipeTable(StringBuilder sb) {
+        pipeRows(sb);
+        sb.append('\n');
+    }
+    
+    private void pipeRows(StringBuilder sb) {
+        int cols = 2 + random.nextInt(3);
+        sb.append('|');
+        for( int c=0; c<cols; c++ )
+            sb.append("_. ").append(words(1)).append(" |");
+        sb.append('\n');
+        int rows = 2 + random.nextInt(6);
+        for( int r=0; r<rows; r++ ) {
+            sb.append('|');
+            for( int c=0; c<cols; c++ )
+                sb.append(' ').append(c == 0 ? String.valueOf(random.nextInt(10000)) : phrase()).append(" |");
+            sb.append('\n');
+        }
+    }
+    
+    //__________________________________________________________________________
+    //
+    // inline parts
+    //__________________________________________________________________________
+    
+    private String sentence() {
+        StringBuilder sb = new StringBuilder(capitalize(words(2)));
+        int parts = 2 + random.nextInt(4);
+        for( int i=0; i<parts; i++ )
+            sb.append(' ').append(phrase());
+        return sb.append('.').toString();
+    }
+    
+    private String phrase() {
+        String w = words(1 + random.nextInt(3));
+        switch( random.nextInt(24) ) {
+            case 0: return "*"+w+"*";
+            case 1: return "_"+w+"_";
+            case 2: return "**"+w+"**";
+            case 3: return "__"+w+"__";
+            case 4: return "@"+w+"()@";
+            case 5: return "\""+w+"\":http://example.com/"+words(1);
+            case 6: return "\""+w+"\":xil";
+            case 7: return ACRONYMS[random.nextInt(ACRONYMS.length)];
+            case 8: return w+" &amp; &copy;";
+            case 9: return w+" (c) (tm)";
+            case 10: return w+" -- "+words(1);
+            case 11: return "by ${author}";
+            case 12: return "&{upper:"+w+"}";
+            case 13: return "%(hl)"+w+"%";
+            case 14: return "??"+w+"??";
+            case 15: return "x^2^ and H~2~O";
+            case 16: return "==*"+w+"*==";
+            case 17: return "!img/"+words(1)+".png("+w+")!";
+            case 18: return "-"+w+"- +"+w+"+";
+            default: return w;
+        }
+    }
+    
+    private String words(int n) {
+        StringBuilder sb = new StringBuilder();
+        for( int i=0; i<n; i++ ) {
+            if( i > 0 )
+                sb.append(' ');
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+    
+    private static String capitalize(String s) {
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+    
+    private static void write(File f, String text) throws IOException {
+        PrintWriter pw = new PrintWriter( new BufferedWriter( new FileWriter(f) ) );
+        pw.print(text);
+        pw.close();
+    }
+    
+    /**
+     * command line entry point, see the class description for options.
+     */
+    public static void main(String[] args) throws IOException {
+        
+        long seed = 1;
+        int depth = 2, breadth = 3, pages = 10, sections = 12;
+        File root = null;
+        
+        try {
+            for( int i=0; i<args.length; i++ ) {
+                String a = args[i];
+                if( a.equals("-s") || a.equals("--seed") ) {
+                    seed = Long.parseLong(args[++i]);
+                } else if( a.equals("-d") || a.equals("--depth") ) {
+                    depth = Integer.parseInt(args[++i]);
+                } else if( a.equals("-b") || a.equals("--breadth") ) {
+                    breadth = Integer.parseInt(args[++i]);
+                } else if( a.equals("-p") || a.equals("--pages") ) {
+                    pages = Integer.parseInt(args[++i]);
+                } else if( a.equals("-n") || a.equals("--sections") ) {
+                    sections = Integer.parseInt(args[++i]);
+                } else if( root == null && !a.startsWith("-") ) {
+                    root = new File(a);
+                } else {
+                    usage("unknown option: "+a);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            usage("option requires a value");
+        } catch (NumberFormatException ex) {
+            usage("not a number: "+ex.getMessage());
+        }
+        if( root == null ) {
+            usage("directory required");
+        }
+        
+        SiteGenerator gen = new SiteGenerator(seed);
+        gen.setDepth(depth);
+        gen.setBreadth(breadth);
+        gen.setPages(pages);
+        gen.setSections(sections);
+        int n = gen.generate(root);
+        System.out.println(n+" source files written to "+root.getAbsolutePath());
+    }
+    
+    private static void usage(String msg) {
+        System.err.println(msg);
+        System.err.println("usage: SiteGenerator [-s seed] [-d depth] [-b breadth] [-p pages] [-n sections] directory");
+        System.exit(1);
+    }
+}
@@ -18,18 +18,92 @@ import java.io.IOException;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Wrapper for the BeanShell interpreter.
  *
+ * <p>An instance is used by one thread at a time, see {@link Env#acquireBsh()}.  Scripts
+ * run in the namespace of the task's {@link Scope}, so the BeanShell files of a
+ * directory are seen only by the files in that directory and below.  Variables set
+ * with set(), like <CODE>task</CODE> and <CODE>text</CODE>, are global to the instance.
  */
 public class BeanShell {
     
+    private static final int MACRO_CACHE_SIZE = 4096;
+    
+    /**
+     * The BeanShell files of a directory.  Each interpreter creates a namespace for a
+     * scope the first time it is needed, as a child of the namespace of the parent
+     * scope, and sources the files into it.  A directory without BeanShell files
+     * shares its parent's scope.  The scope with no parent is the global namespace.
+     */
+    static class Scope {
+        
+        private Scope parent;
+        private String name;
+        private List<File> files;
+        
+        // results of the macros named by _PureMacros_, "func:text" -> result,
+        // least recently used entries are dropped, see BeanShell.macro()
+        private LinkedHashMap<String,String> macros = new LinkedHashMap<String,String>(256, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+                return size() > MACRO_CACHE_SIZE;
+            }
+        };
+        
+        Scope() {
+            this(null, "global", Collections.<File>emptyList());
+        }
+        
+        /**
+         * @param parent scope of the parent directory
+         * @param name namespace name
+         * @param files BeanShell files, sourced in this order
+         */
+        Scope(Scope parent, String name, List<File> files) {
+            this.parent = parent;
+            this.name = name;
+            this.files = files;
+        }
+        
+        synchronized String getMacro(String key) {
+            return macros.get(key);
+        }
+        
+        synchronized void putMacro(String key, String result) {
+            macros.put(key, result);
+        }
+    }
+    
+    /**
+     * an interpreter's namespace for a scope, and the methods compiled in it.
+     */
+    private static class Space {
+        NameSpace ns;
+        HashMap<String,BshMethod> methods = new HashMap<String,BshMethod>();
+        
+        Space(NameSpace ns) {
+            this.ns = ns;
+        }
+    }
+    
     private Interpreter interpreter;
+    private Metrics metrics;    // null unless collecting metrics
+    private HashMap<Scope,Space> spaces = new HashMap<Scope,Space>();
+    private Space space;        // where scripts run, see enter()
+    private String pureList;    // _PureMacros_ value pureNames was split from
+    private String[] pureNames = new String[0];
+    
+    int acquired;               // nesting count of the thread using it, see Env.acquireBsh()
     
     public BeanShell() {
         init();
@@ -39,6 +113,8 @@ public class BeanShell {
 	
     protected void setInterpreter(Interpreter i) {
         interpreter = i;
+        spaces.clear();
+        space = new Space(interpreter.getNameSpace());
     }
     protected void init() {
         
@@ -46,8 +122,22 @@ public class BeanShell {
         NameSpace xilns = interpreter.getNameSpace();
         xilns.importPackage("com.centeredwork.xilize");
         xilns.importPackage("java.util.regex");
+        space = new Space(xilns);
     }
 
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    private long startTime() {
+        return metrics == null ? 0 : System.nanoTime();
+    }
+    
+    private void count(long start) {
+        if( metrics != null )
+            metrics.bsh(System.nanoTime() - start);
+    }
+    
     void set( String name, Object value ) {
         try {
             interpreter.set(name, value);
@@ -56,11 +146,48 @@ public class BeanShell {
         }
     }
     
-    void source( Task task, File file ) {
+    /**
+     * sources the files of a scope into this interpreter, reporting any errors.
+     * Other interpreters source them, without reporting, when first needed.
+     * @param task task whose directory the scope belongs to
+     * @param scope scope to source
+     */
+    void source( Task task, Scope scope ) {
+        space(scope, task);
+    }
+    
+    /**
+     * selects the namespace scripts run in, that of the task's scope, and sets
+     * <CODE>task</CODE>.
+     * @param task task the scripts are run for
+     */
+    void enter( Task task ) {
+        space = space(task.getBshScope(), null);
+        set("task", task);
+    }
+    
+    private Space space( Scope scope, Task task ) {
+        Space s = spaces.get(scope);
+        if( s == null ) {
+            if( scope.parent == null ) {
+                s = new Space(interpreter.getNameSpace());
+            } else {
+                s = new Space(new NameSpace(space(scope.parent, null).ns, scope.name));
+                for( File f : scope.files )
+                    source(task, f, s.ns);
+            }
+            spaces.put(scope, s);
+        }
+        return s;
+    }
+    
+    private void source( Task task, File file, NameSpace ns ) {
         
         // todo: finish this
+        long start = startTime();
         try {
-            interpreter.source(file.getAbsolutePath());
+            interpreter.source(file.getAbsolutePath(), ns);
+            count(start);
         } catch (FileNotFoundException ex) {
             ex.printStackTrace();
         } catch (IOException ex) {
@@ -83,69 +210,178 @@ public class BeanShell {
             } else {
                 msg = e.getMessage();
             }
-            task.report(sourceFile+":"+lineNum+":"+msg);
+            if( task != null )
+                task.report(sourceFile+":"+lineNum+":"+msg);
             
         }
         
     }
     
     Object eval(String statements) throws EvalError {
-        return interpreter.eval(statements);
+        long start = startTime();
+        try {
+            return interpreter.eval(statements, space.ns);
+        } finally {
+            count(start);
+        }
+    }
+    
+    /**
+     * evaluates the macro <CODE>&{function:text}</CODE>.  If <I>function</I> is listed
+     * in the <CODE>_PureMacros_</CODE> key its result is taken to depend only on
+     * <I>text</I> and is cached for the task's scope.
+     * @param task current task
+     * @param function name of a BeanShell method without arguments
+     * @param text macro argument, set as the variable <CODE>text</CODE>
+     * @return the method's result
+     * @throws bsh.EvalError if the method fails
+     */
+    String macro(Task task, String function, String text) throws EvalError {
+        
+        Scope scope = task.getBshScope();
+        String key = null;
+        if( isPure(task.value(Key._PureMacros_), function) ) {
+            key = function + ":" + text;
+            String result = scope.getMacro(key);
+            if( metrics != null )
+                metrics.macro(result != null);
+            if( result != null )
+                return result;
+        }
+        
+        enter(task);
+        set("text", text);
+        String result = eval(function+"();").toString();
+        if( key != null )
+            scope.putMacro(key, result);
+        return result;
+    }
+    
+    private boolean isPure(String list, String function) {
+        if( list.length() == 0 )
+            return false;
+        if( !list.equals(pureList) ) {
+            pureList = list;
+            pureNames = list.trim().split("\\s*,+\\s*");
+        }
+        for( String s : pureNames ) {
+            if( s.equals(function) )
+                return true;
+        }
+        return false;
     }
     
     String exec(Task task, int startLine, String statements) throws EvalError {
         
         Object result = null;
+        long start = startTime();
         try {
             
-            result = interpreter.eval(statements);
+            result = interpreter.eval(statements, space.ns);
+            count(start);
             
         } catch (EvalError e) {
+            report(task, startLine, e);
+            throw e;
+        }
+        
+        return result==null? "": result.toString();
+    }
+    
+    /**
+     * defines a method without arguments whose body is a script, so the script
+     * is parsed once rather than each time it is run.  The method is defined in
+     * the current namespace the first time it is asked for there.
+     * @param name method name
+     * @param statements script
+     * @return the method, null if the script does not parse
+     * @see BeanShell#invoke(Task,int,BshMethod)
+     */
+    BshMethod compile(String name, String statements) {
+        if( space.methods.containsKey(name) )
+            return space.methods.get(name);
+        BshMethod method = null;
+        try {
+            // the body starts on the first line so error line numbers are the script's
+            interpreter.eval(name + "() { " + statements + "\n}", space.ns);
+            method = space.ns.getMethod(name, new Class<?>[0]);
+        } catch (EvalError e) {
+            // not compiled, the script is evaluated each time instead
+        } catch (UtilEvalError e) {
+            // not found, the script is evaluated each time instead
+        }
+        space.methods.put(name, method);
+        return method;
+    }
+    
+    /**
+     * runs a method defined by compile(), errors are reported as exec() reports them.
+     * @param task current task
+     * @param startLine line number of the script
+     * @param method the method
+     * @return the value returned, "" if none
+     * @throws bsh.EvalError if the script fails
+     */
+    String invoke(Task task, int startLine, BshMethod method) throws EvalError {
+        
+        Object result = null;
+        long start = startTime();
+        try {
             
-            String msg = e.getMessage();
+            result = Primitive.unwrap(method.invoke(new Object[0], interpreter,
+                    new CallStack(space.ns)));
+            count(start);
             
-            // bshLine is handled this way because ParseException.getErrorLineNumber() throws
-            // a null pointer exception
-            int bshLine = -1;
+        } catch (EvalError e) {
+            report(task, startLine, e);
+            throw e;
+        }
+        
+        return result==null? "": result.toString();
+    }
+    
+    private void report(Task task, int startLine, EvalError e) {
+        
+        String msg = e.getMessage();
+        
+        // bshLine is handled this way because ParseException.getErrorLineNumber() throws
+        // a null pointer exception
+        int bshLine = -1;
+        
+        if( e instanceof TargetError ) {
             
-            if( e instanceof TargetError ) {
-                
-                TargetError te = (TargetError)e;
-                msg = te.getTarget().getMessage();
-                bshLine = e.getErrorLineNumber();
-                
-            } else if( e instanceof ParseException ) {
-                
-                //parser errors have the form:
-                //      Parse error at line 2, column 31.  Encountered: ...
-                //and this is the only way to get the line number information
-                Matcher m2 = Pattern.compile("^Parse error at line (\\d+)").matcher(msg);
-                if( m2.find() )
-                    bshLine = new Integer(m2.group(1));
-                
-            } else {
-                
-                bshLine = e.getErrorLineNumber();
-                
-                // another little hack to provide only relevant information
-                //      Sourced file: inline evaluation of: ``Object o = new Object(); o.x();'' : ...
-                // we known the "sourced file" is a string not a file
-                final String msgPrefix = "Sourced file: inline evaluation of: ``";
-                final String token = ";'' : ";
-                
-                if( msg.startsWith(msgPrefix)) {
-                    int n = msg.indexOf(token);
-                    msg = msg.substring(n + token.length());
-                }
-                
+            TargetError te = (TargetError)e;
+            msg = te.getTarget().getMessage();
+            bshLine = e.getErrorLineNumber();
+            
+        } else if( e instanceof ParseException ) {
+            
+            //parser errors have the form:
+            //      Parse error at line 2, column 31.  Encountered: ...
+            //and this is the only way to get the line number information
+            Matcher m2 = Pattern.compile("^Parse error at line (\\d+)").matcher(msg);
+            if( m2.find() )
+                bshLine = new Integer(m2.group(1));
+            
+        } else {
+            
+            bshLine = e.getErrorLineNumber();
+            
+            // another little hack to provide only relevant information
+            //      Sourced file: inline evaluation of: ``Object o = new Object(); o.x();'' : ...
+            // we known the "sourced file" is a string not a file
+            final String msgPrefix = "Sourced file: inline evaluation of: ``";
+            final String token = ";'' : ";
+            
+            if( msg.startsWith(msgPrefix)) {
+                int n = msg.indexOf(token);
+                msg = msg.substring(n + token.length());
             }
             
-            int scriptLine = startLine + bshLine;
-            task.error( scriptLine, msg);
-            throw e;
         }
         
-        return result==null? "": result.toString();
+        int scriptLine = startLine + bshLine;
+        task.error( scriptLine, msg);
     }
     
 }
\ No newline at end of file
@@ -16,7 +16,7 @@ import java.util.regex.Pattern;
 public class Block {
     
     private Signature sig;
-    private ArrayList<String> lines = new ArrayList<String>();
+    private ArrayList<String> lines = new ArrayList<String>(4);
     private ArrayList<Block> children;
     private Block parent;
     private int trailingBlankLineCount;  // required for propper <pre> output
@@ -36,8 +36,12 @@ public class Block {
     private Task task;
     private int startLineNumber;
     
-    // an association between source line numbers and the lines of the block, for error reporting
-    private ArrayList<Integer> lineNumbers = new ArrayList<Integer>();
+    // source line numbers of the lines of the block by index, for error reporting
+    private int[] lineNumbers = new int[4];
+    
+    // linesAsString() results for start 0 and 1, untrimmed and trimmed, null until
+    // needed and when lines change
+    private String[] joined;
     
     // set by ctor or translate()
     private String translation = "";
@@ -206,17 +210,26 @@ public class Block {
     }
     
     public void addLine(int number, String s) {
+        int n = lines.size();
+        if( n == lineNumbers.length ) {
+            int[] a = new int[n * 2];
+            System.arraycopy(lineNumbers, 0, a, 0, n);
+            lineNumbers = a;
+        }
+        lineNumbers[n] = number;
         lines.add(s);
-        lineNumbers.add(number);
+        joined = null;
     }
     
     public void removeLine(int index) {
         lines.remove(index);
-        lineNumbers.remove(index);
+        System.arraycopy(lineNumbers, index+1, lineNumbers, index, lines.size() - index);
+        joined = null;
     }
     
     public void setLine( int n, String s ) {
         lines.set(n,s);
+        joined = null;
     }
     
     public String getLine( int n ) {
@@ -301,9 +314,28 @@ public class Block {
     }
     
     // note: does not place a \n at the end of the last line
+    // the lines of a block must be changed with addLine(), removeLine(), and setLine()
+    // so the text is joined again
     private String linesAsString(int start, boolean trim) {
         if( lines == null || lines.isEmpty() )
             return "";
+        if( start > 1 )
+            return join(start, trim);
+        
+        int slot = start*2 + (trim? 1: 0);
+        if( joined == null )
+            joined = new String[4];
+        if( joined[slot] == null )
+            joined[slot] = join(start, trim);
+        return joined[slot];
+    }
+    
+    private String join(int start, boolean trim) {
+        int last = lines.size()-1;
+        if( start >= last ) {
+            // one line, nothing to join
+            return trim? lines.get(last).trim() : lines.get(last);
+        }
         
         StringBuilder sb = new StringBuilder();
         for( int i=start; i<lines.size()-1; i++ ) {
@@ -321,7 +353,29 @@ public class Block {
     void lastPass(Block root) {}
     
     public void translate() {
-        translation = sig.translate(task, this);
+        Metrics metrics = task.getEnv().getMetrics();
+        if( metrics == null ) {
+            translation = sig.translate(task, this);
+        } else {
+            long start = System.nanoTime();
+            translation = sig.translate(task, this);
+            metrics.signature(sig.getName(), System.nanoTime() - start);
+        }
+    }
+    /**
+     * translates this block and writes it to the output stream, see
+     * {@link Signature#stream(Task,Block,PrintWriter)}.
+     * @param pw translation stream
+     */
+    public void stream(PrintWriter pw) {
+        Metrics metrics = task.getEnv().getMetrics();
+        if( metrics == null ) {
+            sig.stream(task, this, pw);
+        } else {
+            long start = System.nanoTime();
+            sig.stream(task, this, pw);
+            metrics.signature(sig.getName(), System.nanoTime() - start);
+        }
     }
     public void translateLast() {
         if( translation == null )
@@ -399,11 +453,25 @@ public class Block {
         return startLineNumber;
     }
     
+    /**
+     * gets the source line number of a line of this block, a linear search;
+     * use {@link #getLineNumberAt(int)} when the line's index is known.
+     * @param originalLineText text of the line as read
+     * @return line number of the first line with this text, or of the block if none
+     */
     public int getLineNumber(String originalLineText ) {
-        int n = lines.indexOf(originalLineText);
-        if( n == -1 )
+        return getLineNumberAt(lines.indexOf(originalLineText));
+    }
+    
+    /**
+     * gets the source line number of a line of this block.
+     * @param index index of the line in {@link #getLines()}
+     * @return line number, or that of the block if there is no such line
+     */
+    public int getLineNumberAt(int index) {
+        if( index < 0 || index >= lines.size() )
             return startLineNumber;
-        return lineNumbers.get(n);
+        return lineNumbers[index];
     }
     
     public int getTrailingBlankLineCount() {
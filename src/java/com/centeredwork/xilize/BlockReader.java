@@ -10,12 +10,17 @@ import java.io.File;
 import java.io.IOException;
 import java.io.LineNumberReader;
 import java.io.Reader;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
 
 /**
  * Reads blocks of text from an input stream.  Implemented as a one-line
  * pushback LineNumberReader.
+ *
+ * <p>Lines are classified by scanning their characters, see isComment(),
+ * isBlank(), isContent(), isEndBlock(), and startBlockText().  Each test gives
+ * the same answer as the regular expression noted with it.
  * @author Andy Streich
  */
 public class BlockReader extends LineNumberReader {
@@ -24,10 +29,41 @@ public class BlockReader extends LineNumberReader {
     
     private String lastLine;  // pushback buffer
     
-    private Pattern isComment;
-    private Pattern isStartBlock;
-    private Pattern isEndBlock;
+    private String comment;
+    private String startBlock;
+    private String endBlock;
     private String tabSpaces;
+    private StringBuilder sb = new StringBuilder();
+    
+    private char[] source;  // decoded source, null when reading the stream
+    private int pos;        // index of the next character in source
+    private int limit;
+    private int sourceLines;   // lines read from source
+    
+    private Lines lines;    // source lines read earlier, null when reading the stream
+    private int next;       // index of the next line in lines
+    private int current;    // line number of the last line replayed
+    
+    /**
+     * the non-comment lines of a source with their line numbers, as returned by
+     * {@link BlockReader#nextLine()}.  Kept so that include files read for
+     * one page need not be read again for the next.
+     * @see Env#includeLines(Task,File)
+     */
+    static class Lines {
+        
+        private String[] text;
+        private int[] numbers;
+        private int lineCount;  // line number at end of input
+        
+        Lines( ArrayList<String> text, ArrayList<Integer> numbers, int lineCount ) {
+            this.text = text.toArray(new String[text.size()]);
+            this.numbers = new int[numbers.size()];
+            for( int i=0; i<this.numbers.length; i++ )
+                this.numbers[i] = numbers.get(i);
+            this.lineCount = lineCount;
+        }
+    }
     
     /**
      * Creates a BlockReader instance.
@@ -43,9 +79,9 @@ public class BlockReader extends LineNumberReader {
         super(reader);
         this.task = task;
         
-        isComment = Pattern.compile("\\s*"+Pattern.quote(task.value(Key._LineCommentString_))+".*");
-        isStartBlock = Pattern.compile("(.*?)"+" *"+Pattern.quote(task.value(Key._BlockStartString_)));
-        isEndBlock = Pattern.compile(" *"+Pattern.quote(task.value(Key._BlockEndString_)));
+        comment = task.value(Key._LineCommentString_);
+        startBlock = task.value(Key._BlockStartString_);
+        endBlock = task.value(Key._BlockEndString_);
         
         int n = task.isDefined(Key._SpacesPerTab_) ?
             Integer.valueOf(task.value(Key._SpacesPerTab_)) :
@@ -58,6 +94,46 @@ public class BlockReader extends LineNumberReader {
         
     }
     
+    /**
+     * Creates a BlockReader instance which replays lines read earlier.
+     * @param task current task
+     * @param lines lines read by another BlockReader
+     * @see BlockReader#readLines()
+     */
+    BlockReader( Task task, Lines lines ) {
+        this(task, new StringReader(""));
+        this.lines = lines;
+    }
+    
+    /**
+     * Creates a BlockReader instance reading a decoded source file.
+     * @param task current task
+     * @param source source text
+     * @see Files#decode(File,java.nio.charset.Charset)
+     */
+    BlockReader( Task task, CharBuffer source ) {
+        this(task, new StringReader(""));
+        this.source = source.array();
+        pos = source.arrayOffset() + source.position();
+        limit = source.arrayOffset() + source.limit();
+    }
+    
+    /**
+     * reads all remaining non-comment lines.
+     * @return the lines with their line numbers
+     * @throws java.io.IOException same as java.io.LineNumberReader
+     */
+    Lines readLines() throws IOException {
+        ArrayList<String> text = new ArrayList<String>();
+        ArrayList<Integer> numbers = new ArrayList<Integer>();
+        String s;
+        while( (s = nextLine()) != null ) {
+            text.add(s);
+            numbers.add(getLineNumber());
+        }
+        return new Lines(text, numbers, getLineNumber());
+    }
+    
     /**
      * gets the next non-comment source line with trailing whitespace removed and
      * spaces substituted for tabs.  
@@ -75,16 +151,147 @@ public class BlockReader extends LineNumberReader {
             return tmp;
         }
         
+        if( lines != null ) {
+            if( next == lines.text.length ) {
+                current = lines.lineCount;
+                return null;
+            }
+            current = lines.numbers[next];
+            return lines.text[next++];
+        }
+        
         // skip comment lines
         String s = null;
         do {
-            s = readLine();
-        } while( s != null && isComment.matcher(s).matches() );
+            s = source == null ? readLine() : readSourceLine();
+        } while( s != null && isComment(s) );
+        
+        return s==null? null: clean(s);
+    }
+    
+    /**
+     * reads a line of the decoded source, lines end as they do for readLine().
+     * @return the line, null at end of source
+     */
+    private String readSourceLine() {
+        if( pos == limit )
+            return null;
+        int start = pos;
+        while( pos < limit && source[pos] != '\n' && source[pos] != '\r' )
+            pos++;
+        String s = new String(source, start, pos - start);
+        if( pos < limit && source[pos++] == '\r' && pos < limit && source[pos] == '\n' )
+            pos++;
+        sourceLines++;
+        return s;
+    }
+    
+    /**
+     * trims trailing whitespace and converts tabs to spaces, as
+     * <CODE>s.replaceAll("\\s+$", "").replaceAll("\t",tabSpaces)</CODE>.
+     * @param s source line
+     * @return <I>s</I> itself if there is nothing to change
+     */
+    private String clean( String s ) {
+        
+        int end = s.length();
         
-        // tabs converted to spaces
-        // trims trailing whitespace
+        // "$" also matches before a final line terminator, which is kept if not whitespace
+        int keep = end;
+        if( end > 0 && isLineTerminator(s.charAt(end-1)) && !isSpace(s.charAt(end-1)) )
+            keep--;
+        int trim = keep;
+        while( trim > 0 && isSpace(s.charAt(trim-1)) )
+            trim--;
         
-        return s==null? null: s.replaceAll("\\s+$", "").replaceAll("\t",tabSpaces);
+        if( trim == end && s.indexOf('\t') == -1 )
+            return s;
+        
+        sb.setLength(0);
+        for( int i=0; i<trim; i++ ) {
+            char c = s.charAt(i);
+            if( c == '\t' )
+                sb.append(tabSpaces);
+            else
+                sb.append(c);
+        }
+        sb.append(s, keep, end);
+        return sb.toString();
+    }
+    
+    // "\\s"
+    private static boolean isSpace( char c ) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+    
+    // the characters "." does not match
+    private static boolean isLineTerminator( char c ) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+    
+    private static boolean hasLineTerminator( String s, int start, int end ) {
+        for( int i=start; i<end; i++ ) {
+            if( isLineTerminator(s.charAt(i)) )
+                return true;
+        }
+        return false;
+    }
+    
+    /**
+     * "\\s*" + _LineCommentString_ + ".*"
+     */
+    private boolean isComment( String s ) {
+        int len = s.length();
+        for( int i=0; i<=len; i++ ) {
+            if( s.startsWith(comment, i) && !hasLineTerminator(s, i+comment.length(), len) )
+                return true;
+            if( i == len || !isSpace(s.charAt(i)) )
+                return false;
+        }
+        return false;
+    }
+    
+    /**
+     * " *"
+     */
+    private static boolean isBlank( String s ) {
+        for( int i=0; i<s.length(); i++ ) {
+            if( s.charAt(i) != ' ' )
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * " *\\S.*"
+     */
+    private static boolean isContent( String s ) {
+        int i = 0;
+        int len = s.length();
+        while( i < len && s.charAt(i) == ' ' )
+            i++;
+        return i < len && !isSpace(s.charAt(i)) && !hasLineTerminator(s, i+1, len);
+    }
+    
+    /**
+     * " *" + _BlockEndString_
+     */
+    private boolean isEndBlock( String s ) {
+        return s.endsWith(endBlock) && isBlank(s.substring(0, s.length() - endBlock.length()));
+    }
+    
+    /**
+     * "(.*?) *" + _BlockStartString_
+     * @return group 1, the text before the start-block marker, or null if
+     * <I>s</I> does not end with the marker
+     */
+    private String startBlockText( String s ) {
+        if( !s.endsWith(startBlock) )
+            return null;
+        int end = s.length() - startBlock.length();
+        while( end > 0 && s.charAt(end-1) == ' ' )
+            end--;
+        return hasLineTerminator(s, 0, end) ? null : s.substring(0, end);
     }
     
     void pushback( String line ) {
@@ -97,10 +304,12 @@ public class BlockReader extends LineNumberReader {
      */
     public int getLineNumber() {
         
+        int n = lines != null ? current : source != null ? sourceLines : super.getLineNumber();
+        
         if( lastLine == null ) {
-            return super.getLineNumber();
+            return n;
         }
-        return super.getLineNumber() - 1;
+        return n - 1;
     }
     
     Block readRawBlock() throws IOException {
@@ -110,18 +319,18 @@ public class BlockReader extends LineNumberReader {
         do {
             line = nextLine();
             if( line == null ) return null;  // EOF
-        } while( line.matches(" *") );
+        } while( isBlank(line) );
         
-        if( isEndBlock.matcher(line).matches() )
+        if( isEndBlock(line) )
             return Block.createEndBlock(task, getLineNumber());
         
         // create block
         
         Block block = null;
-        Matcher m = isStartBlock.matcher(line);
-        if( m.matches()) {
+        String text = startBlockText(line);
+        if( text != null ) {
             // block only has one line and it ends with the start-block marker
-            block = new Block(task, getLineNumber(), m.group(1), true);
+            block = new Block(task, getLineNumber(), text, true);
             block.setTrailingBlankLineCount(blankLines());
             return block;
         }
@@ -129,13 +338,13 @@ public class BlockReader extends LineNumberReader {
         block = new Block(task, getLineNumber(), line);
         
         line = nextLine();
-        while( line != null && line.matches(" *\\S.*") ) {
-            if( isEndBlock.matcher(line).matches() )
+        while( line != null && isContent(line) ) {
+            if( isEndBlock(line) )
                 break;
             
-            m = isStartBlock.matcher(line);
-            if( m.matches()) {
-                block.addLine(getLineNumber(), m.group(1), true);
+            text = startBlockText(line);
+            if( text != null ) {
+                block.addLine(getLineNumber(), text, true);
                 block.setTrailingBlankLineCount(blankLines());
                 return block;
             }
@@ -156,7 +365,7 @@ public class BlockReader extends LineNumberReader {
         if( line == null ) return 0;
         
         int count = 0;
-        while( line.matches(" *") ) {
+        while( isBlank(line) ) {
             count++;
             line = nextLine();
             if( line == null ) return count;
@@ -1,6 +1,14 @@
 package com.centeredwork.xilize;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -13,10 +21,50 @@ import java.lang.reflect.InvocationTargetException;
 public class Env {
     
     private Reporter reporter;
-    private InlineMarkup inline = new InlineMarkup();
-    private Regex regex = new Regex();
     private BeanShell bsh = new BeanShell();
-    private boolean halt;
+    private volatile boolean halt;
+    private Manifest manifest;      // null unless translating incrementally
+    private Metrics metrics;        // null unless collecting metrics
+    private InlineRules inlineRules;
+    
+    // lines of include files read during this run, see includeLines()
+    private HashMap<String,BlockReader.Lines> includeCache = new HashMap<String,BlockReader.Lines>();
+    
+    // charsets named by the charset key during this run, see charset()
+    private final ConcurrentHashMap<String,Charset> charsets = new ConcurrentHashMap<String,Charset>();
+    
+    // inline markup engines not in use, kept per thread so they are never shared,
+    // more than one is needed when a macro translates markup itself
+    private final ThreadLocal<ArrayList<InlineMarkup>> idleInline = new ThreadLocal<ArrayList<InlineMarkup>>() {
+        protected ArrayList<InlineMarkup> initialValue() {
+            return new ArrayList<InlineMarkup>(4);
+        }
+    };
+    
+    // the engine returned by getInline()
+    private final ThreadLocal<InlineMarkup> threadInline = new ThreadLocal<InlineMarkup>() {
+        protected InlineMarkup initialValue() {
+            return new InlineMarkup();
+        }
+    };
+    
+    private final ThreadLocal<Regex> regex = new ThreadLocal<Regex>() {
+        protected Regex initialValue() {
+            return new Regex();
+        }
+    };
+    
+    // interpreters not in use, most recently released first, see acquireBsh()
+    private final ConcurrentLinkedDeque<BeanShell> idleBsh = new ConcurrentLinkedDeque<BeanShell>();
+    
+    // the interpreter each thread is using, if any
+    private final ThreadLocal<BeanShell> bshInUse = new ThreadLocal<BeanShell>();
+    
+    // scope of tasks outside any directory with BeanShell files
+    private BeanShell.Scope bshScope = new BeanShell.Scope();
+    
+    // bumped when definitions other tasks inherit change, see Task.Resolved
+    private final AtomicInteger generation = new AtomicInteger();
     
     /**
      * creates an instance of Env with the given reporter object
@@ -25,28 +73,197 @@ public class Env {
     public Env(Reporter reporter, BeanShell bsh) {
         this.reporter = reporter;
 		this.bsh = bsh;
+        idleBsh.push(bsh);
+        inlineRules = InlineRules.load(reporter);
     }
     
     void reset() {
         reporter = reporter.newInstance();
 		bsh = bsh.newInstance();
+        idleBsh.clear();
+        idleBsh.push(bsh);
+        bshScope = new BeanShell.Scope();
         halt = false;
+        synchronized( includeCache ) {
+            includeCache.clear();
+        }
+        charsets.clear();
+    }
+    
+    int generation() {
+        return generation.get();
+    }
+    
+    void nextGeneration() {
+        generation.incrementAndGet();
+        if( metrics != null )
+            metrics.generation();
     }
     
     public Reporter getReporter() {
         return reporter;
     }
     
+    /**
+     * @return an inline markup engine kept for the calling thread
+     * @deprecated an engine holds the state of one translation and this one is shared
+     * by every caller on the thread, use {@link #acquireInline()} and
+     * {@link #releaseInline(InlineMarkup)}
+     */
+    @Deprecated
     public InlineMarkup getInline() {
-        return inline;
+        return threadInline.get();
     }
     
+    /**
+     * gets an inline markup engine for use by the calling thread, return it with
+     * {@link #releaseInline(InlineMarkup)} when the translation is done.
+     * @return an engine not in use by any other translation
+     */
+    public InlineMarkup acquireInline() {
+        ArrayList<InlineMarkup> idle = idleInline.get();
+        return idle.isEmpty() ? new InlineMarkup() : idle.remove(idle.size()-1);
+    }
+    
+    /**
+     * returns an engine obtained from {@link #acquireInline()} for reuse.  The
+     * engine drops the state of its last translation, so idle engines keep no
+     * task or text alive.
+     * @param inline the engine, must be released by the thread that acquired it
+     */
+    public void releaseInline(InlineMarkup inline) {
+        inline.clear();
+        idleInline.get().add(inline);
+    }
+    
+    /**
+     * @return the Regex object of the calling thread
+     */
     public Regex getRegex() {
-        return regex;
+        return regex.get();
     }
 
     public BeanShell getBsh() { return bsh; }
     
+    /**
+     * @return Java inline markup rules, loaded when this object is created
+     */
+    public InlineRules getInlineRules() { return inlineRules; }
+    
+    /**
+     * gets an interpreter for use by the calling thread, return it with
+     * {@link #releaseBsh(BeanShell)} when done.  A thread already using one, as when a
+     * macro translates markup with macros in it, gets the same one again.
+     * @return an interpreter not in use by any other thread
+     */
+    public BeanShell acquireBsh() {
+        BeanShell b = bshInUse.get();
+        if( b == null ) {
+            b = idleBsh.poll();
+            if( b == null ) {
+                b = bsh.newInstance();
+                b.setMetrics(metrics);
+            }
+            bshInUse.set(b);
+        }
+        b.acquired++;
+        return b;
+    }
+    
+    /**
+     * returns an interpreter obtained from {@link #acquireBsh()} for reuse.
+     * @param b the interpreter, must be released by the thread that acquired it
+     */
+    public void releaseBsh(BeanShell b) {
+        if( --b.acquired == 0 ) {
+            bshInUse.remove();
+            idleBsh.push(b);
+        }
+    }
+    
+    BeanShell.Scope getBshScope() { return bshScope; }
+    
+    /**
+     * gets the lines of an include file, reading the file only the first time it
+     * is included during a run.  Lines depend on the file's contents and on the
+     * <CODE>_LineCommentString_</CODE> and <CODE>_SpacesPerTab_</CODE> keys, the
+     * cache is keyed accordingly.
+     * @param task task including the file
+     * @param f file to include
+     * @return non-comment lines of the file
+     * @throws java.io.IOException if the file cannot be read
+     */
+    BlockReader.Lines includeLines(Task task, File f) throws IOException {
+        
+        Charset charset = Files.charset(task);
+        String key = f.getCanonicalPath() +"\n"+ f.lastModified() +"\n"+ f.length() +"\n"+ charset.name()
+            +"\n"+ task.value(Key._LineCommentString_) +"\n"+ task.value(Key._SpacesPerTab_);
+        
+        BlockReader.Lines lines;
+        synchronized( includeCache ) {
+            lines = includeCache.get(key);
+        }
+        if( metrics != null )
+            metrics.include(lines != null);
+        if( lines == null ) {
+            BlockReader br = new BlockReader(task, Files.decode(f, charset));
+            try {
+                lines = br.readLines();
+            } finally {
+                br.close();
+            }
+            synchronized( includeCache ) {
+                includeCache.put(key, lines);
+            }
+        }
+        return lines;
+    }
+    
+    /**
+     * resolves a charset name once per run, so an unsupported name is reported
+     * once rather than for every file and include read or written with it.
+     * @param task task whose <CODE>charset</CODE> key holds the name
+     * @param name charset name
+     * @return the charset, the platform default if <I>name</I> is unsupported
+     */
+    Charset charset(Task task, String name) {
+        
+        Charset charset = charsets.get(name);
+        if( charset != null )
+            return charset;
+        
+        boolean supported = true;
+        try {
+            charset = Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            charset = Charset.defaultCharset();
+            supported = false;
+        }
+        if( charsets.putIfAbsent(name, charset) == null && !supported )
+            task.warning("unsupported charset \""+ name +"\", using "+ charset.name());
+        return charset;
+    }
+    
+    /**
+     * @return the build manifest or null if translation is not incremental
+     * @see Key#_Incremental_
+     */
+    public Manifest getManifest() { return manifest; }
+    
+    void setManifest(Manifest manifest) { this.manifest = manifest; }
+    
+    /**
+     * @return metrics of the current run, null unless collecting them
+     * @see Key#_Metrics_
+     */
+    public Metrics getMetrics() { return metrics; }
+    
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        for( BeanShell b : idleBsh )
+            b.setMetrics(metrics);
+    }
+    
     /**
      * called by host environment to test if translation is running.
      * @return true if user has halted translation
@@ -9,12 +9,22 @@ package com.centeredwork.xilize;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.regex.Pattern;
 
 /**
  * Static file-oriented, utility methods.
@@ -24,6 +34,9 @@ public class Files {
     private static final String ROOT_CONFIG = "root.xilconfig";
     private static final String DIR_CONFIG = "dir.xilconfig";
     
+    // files larger than this are mapped into memory rather than read
+    private static final long MAP_THRESHOLD = 1 << 20;
+    
     private Files() {}
     
     /**
@@ -132,15 +145,54 @@ public class Files {
      * @return the file contents
      */
     public static String read( File path ) throws IOException, FileNotFoundException {
+        return decode(path, Charset.defaultCharset()).toString();
+    }
+    
+    /**
+     * reads a whole text file and decodes it in one step, large files are mapped
+     * into memory.  Malformed input is replaced, as FileReader does.
+     *
+     * @param path file path
+     * @param charset the file's encoding
+     * @throws java.io.IOException if the file cannot be read
+     * @throws java.io.FileNotFoundException if the file does not exist
+     * @return the file contents, an array-backed buffer
+     * @see Files#charset(Task)
+     */
+    public static CharBuffer decode( File path, Charset charset ) throws IOException, FileNotFoundException {
         
-        Reader reader = new BufferedReader(new FileReader(path));
-        StringBuilder sb = new StringBuilder((int)path.length());
-        int c = -1;
-        while((c=reader.read()) != -1 ) {
-            sb.append((char)c);
+        FileInputStream in = new FileInputStream(path);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            ByteBuffer bytes;
+            if( size > MAP_THRESHOLD ) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                bytes = ByteBuffer.allocate((int) size);
+                while( bytes.hasRemaining() && channel.read(bytes) != -1 ) ;
+                bytes.flip();
+            }
+            return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                .decode(bytes);
+        } finally {
+            in.close();
         }
-        reader.close();
-        return sb.toString();
+    }
+    
+    /**
+     * gets the encoding of source and output files, the value of key <CODE>charset</CODE>.
+     * @param task current task
+     * @return the charset named, the platform default if <CODE>charset</CODE> is
+     * undefined or names an unsupported charset, which is reported once per run
+     */
+    public static Charset charset( Task task ) {
+        String name = task.value(Key.charset).trim();
+        if( name.equals("") )
+            return Charset.defaultCharset();
+        return task.getEnv().charset(task, name);
     }
     
     /**
@@ -227,5 +279,103 @@ public class Files {
         return new ArrayList<File>(Arrays.asList(dirs));
     }
     
+    /**
+     * the entries of one directory, read in a single pass with one attribute read
+     * per entry.  Answers the questions {@link #listFiles(File,String)},
+     * {@link #listDirs(File,String)} and File.exists() answer without going back to
+     * the file system.  Entries are those present when the directory was listed.
+     */
+    public static class Listing {
+        
+        private File[] files;   // sorted, everything that is not a directory
+        private File[] dirs;    // sorted
+        private HashSet<String> existing = new HashSet<String>();
+        private IOException error;
+        
+        Listing(File dir) {
+            ArrayList<File> f = new ArrayList<File>();
+            ArrayList<File> d = new ArrayList<File>();
+            try {
+                DirectoryStream<Path> stream = java.nio.file.Files.newDirectoryStream(dir.toPath());
+                try {
+                    for( Path p : stream ) {
+                        File entry = new File(dir, p.getFileName().toString());
+                        BasicFileAttributes attrs;
+                        try {
+                            attrs = java.nio.file.Files.readAttributes(p, BasicFileAttributes.class);
+                        } catch (IOException ex) {
+                            f.add(entry);   // a broken link, listed but not existing
+                            continue;
+                        }
+                        existing.add(entry.getName());
+                        if( attrs.isDirectory() )
+                            d.add(entry);
+                        else
+                            f.add(entry);
+                    }
+                } finally {
+                    stream.close();
+                }
+            } catch (IOException ex) {
+                error = ex;
+            }
+            files = f.toArray(new File[f.size()]);
+            dirs = d.toArray(new File[d.size()]);
+            Arrays.sort(files);
+            Arrays.sort(dirs);
+        }
+        
+        /**
+         * @param regex pattern to match
+         * @return sorted list of the files, not directories, whose names match <I>regex</I>
+         */
+        public ArrayList<File> files(String regex) {
+            return matching(files, regex);
+        }
+        
+        /**
+         * @param regex pattern to match
+         * @return sorted list of the directories whose names match <I>regex</I>
+         */
+        public ArrayList<File> dirs(String regex) {
+            return matching(dirs, regex);
+        }
+        
+        /**
+         * @param name name of an entry
+         * @return true if the directory has an entry of that name, file or directory
+         */
+        public boolean exists(String name) {
+            return existing.contains(name);
+        }
+        
+        /**
+         * @return the exception which stopped the listing, null if there was none
+         */
+        public IOException getError() {
+            return error;
+        }
+        
+        private static ArrayList<File> matching(File[] entries, String regex) {
+            Pattern pattern = Pattern.compile(regex);
+            ArrayList<File> list = new ArrayList<File>();
+            for( File f : entries ) {
+                if( pattern.matcher(f.getName()).matches() )
+                    list.add(f);
+            }
+            return list;
+        }
+    }
+    
+    /**
+     * lists a directory.  A directory which cannot be read lists as empty, with the
+     * reason available from {@link Listing#getError()}.
+     * @param dir directory to list
+     * @return the directory's entries
+     */
+    public static Listing list(File dir) {
+        return new Listing(dir);
+    }
+    
     
 }
@@ -4,24 +4,30 @@ import bsh.EvalError;
 import bsh.TargetError;
 import com.centeredwork.xilize.Regex.Trans;
 import java.io.File;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.regex.*;
 
 /**
  * translates Xilize markup inside a block (as opposed to block-level markup
  * like signatures their modifiers.
  *
- * Note, this is essentially the same class used prior to v2.0beta build 34
- * adjusted to be thread safe.
+ * Note, this is essentially the same class used prior to v2.0beta build 34.
+ * An instance holds the state of one translation and must not be shared
+ * between threads, use {@link Env#acquireInline()} to obtain one.
  * It will eventually be replaced by a real grammar-rule-driven parser, but
  * until then it is accurate and efficient even if difficult to maintain.
+ *
+ * Projects add their own inline markup with {@link InlineRule}s, which run
+ * between the fixed steps of translate().
  */
 public class InlineMarkup {
     
     // {{{ private static fields -----------------------------------
     
-    private static final String XIL_KEY 	= "`xil%";
-    private static final String XIL_END 	= "%xil`";
+    // a snippet key is the snippet's index between these, the backquotes end
+    // phrases like whitespace does and the private use characters occur in no text
+    private static final String XIL_KEY 	= "`\uE000";
+    private static final String XIL_END 	= "\uE001`";
     private static final String AMP_SUB 	= "q%`q%";
     
     private static final String PHRASE_TERMINATOR = "(?=$|<|`|\\s|([\\.,;:!\\?](\\s|$)))";
@@ -133,15 +139,14 @@ public class InlineMarkup {
             new Trans() {
         public void apply( Task task, StringBuilder buffer, Matcher m ) {
             
-            BeanShell bsh = task.getBsh();
+            BeanShell bsh = task.getEnv().acquireBsh();
             try {
                 
-                bsh.set("task", task);
                 if( m.group(1) == null ) {
+                    bsh.enter(task);
                     buffer.append(bsh.eval(m.group(2)).toString());
                 } else {
-                    bsh.set("text", m.group(2));
-                    buffer.append(bsh.eval(m.group(1)+"();").toString());
+                    buffer.append(bsh.macro(task, m.group(1), m.group(2)));
                 }
                 
                 // todo: finalize exception handling
@@ -184,6 +189,8 @@ public class InlineMarkup {
             }  catch ( Throwable t ) {
                 task.error(0, "macro error: "+t.getMessage());
                 buffer.append("==!!MACRO ERROR!!==");
+            } finally {
+                task.getEnv().releaseBsh(bsh);
             }
         }
     }
@@ -532,52 +539,53 @@ public class InlineMarkup {
     // acronym and acronym-like transformations
     
     private static Regex.Replace acronymTrans = new Regex.Replace(
-            "",
+            Regex.CAPS,
             "\\b([A-Z][A-Z0-9]{2,})(\\(([^\\)]+?)\\))",
             "<acronym title=\"$3\"><span class=\"caps\">$1</span></acronym>"
             );
     private static Regex.Replace acronymLikeTrans = new Regex.Replace(
-            "",
+            Regex.CAPS,
             "(\\s|^)([A-Z][A-Z0-9]{2,})\\b",
             "$1<span class=\"caps\">$2</span>"
             );
     
     // common phrase markup
-    private static String phrases(Task task, String text){
+    private static String phrases(Regex regex, Task task, String text){
         
         if( text.length() < 3 )
             return text;
         
-        text = spanTrans.apply(task, text);
-        text = spanEmbeddedTrans.apply(task, text);
+        text = spanTrans.apply(regex, task, text);
+        text = spanEmbeddedTrans.apply(regex, task, text);
         
         // symmetric phrases: e.g. _em_
         for(int i = 0; i < phraseTrans.length; i++) {
-            text = phraseEmbeddedTrans[i].replace(text);
-            text = phraseTrans[i].replace(text);
+            text = phraseEmbeddedTrans[i].replace(regex, text);
+            text = phraseTrans[i].replace(regex, text);
         }
         // footnote marker: [#]
-        if( task.value("_FootnoteStyle_").equals("modern") ) {
-            text = fnMarkerModernTrans.replace(text);
+        if( task.value(Key._FootnoteStyle_).equals("modern") ) {
+            text = fnMarkerModernTrans.replace(regex, text);
         } else { // it's classic
-            text = fnMarkerClassicTrans.replace(text);
+            text = fnMarkerClassicTrans.replace(regex, text);
         }
-        text = acronymTrans.replace(text);
-        text = acronymLikeTrans.replace(text);
+        text = acronymTrans.replace(regex, text);
+        text = acronymLikeTrans.replace(regex, text);
         return text;
     }
     
     // Character Entity Reference Mapping
-    private static String cers(String str){
-        String[][] CER_MAP = {
-            { "(\\s?)--(\\s?)",     "$1&#8212;$2", },// emdash
-            { "\\s-\\s",            " &#8211; ", },  // endash
-            { "\\b( )?\\((tm|TM)\\)","$1&#8482;", }, // trademark
-            { "\\b( )?\\([rR]\\)",   "$1&#174;", },  // registered mark
-            { "(\\A|\\b)( )?\\([cC]\\)( )?(\\b|\\Z)", "$2&#169;$3", }, // copyright
-        };
+    private static final Regex.Replace[] CER_MAP = {
+        new Regex.Replace( "--", "(\\s?)--(\\s?)",     "$1&#8212;$2" ),// emdash
+        new Regex.Replace( "-",  "\\s-\\s",            " &#8211; " ),  // endash
+        new Regex.Replace( "(",  "\\b( )?\\((tm|TM)\\)","$1&#8482;" ), // trademark
+        new Regex.Replace( "(",  "\\b( )?\\([rR]\\)",   "$1&#174;" ),  // registered mark
+        new Regex.Replace( "(",  "(\\A|\\b)( )?\\([cC]\\)( )?(\\b|\\Z)", "$2&#169;$3" ), // copyright
+    };
+    
+    private static String cers(Regex regex, String str){
         for(int i=0; i<CER_MAP.length; i++){
-            str = str.replaceAll(CER_MAP[i][0], CER_MAP[i][1]);
+            str = CER_MAP[i].replace(regex, str);
         }
         return str;
     }
@@ -585,21 +593,76 @@ public class InlineMarkup {
     
     // note: & is not restored, compare to replaceUnkindChar()
     private static String cer2gtrLess(String str){
-        str = str.replaceAll("&gt;", ">");
-        str = str.replaceAll("&lt;", "<");
-        return str;
+        int i = str.indexOf('&');
+        if( i == -1 )
+            return str;
+        StringBuilder sb = null;
+        int start = 0;
+        for( ; i != -1; i = str.indexOf('&', i+1) ) {
+            String c = str.startsWith("&gt;", i) ? ">" : str.startsWith("&lt;", i) ? "<" : null;
+            if( c == null )
+                continue;
+            if( sb == null )
+                sb = new StringBuilder(str.length());
+            sb.append(str, start, i).append(c);
+            start = i + 4;
+            i += 3;
+        }
+        return sb == null ? str : sb.append(str, start, str.length()).toString();
     }
     
     private void storeSnippet(StringBuilder sb, String text) {
-        String key = XIL_KEY + Integer.toString(nextKeyId++) + XIL_END;
-        sb.append(key);
-        snippetMap.put( key, text );
+        sb.append(XIL_KEY).append(snippets.size()).append(XIL_END);
+        snippets.add(text);
+    }
+    
+    /**
+     * replaces snippet keys by their snippets in one scan.  Snippets are not
+     * scanned, nor are keys of snippets that do not exist.
+     * @param t text with snippet keys
+     * @return text with snippets
+     */
+    private String restoreSnippets(String t) {
+        
+        int i = t.indexOf(XIL_KEY);
+        if( i == -1 )
+            return t;
+        StringBuilder sb = buffer;
+        sb.setLength(0);
+        int start = 0;
+        for( ; i != -1; i = t.indexOf(XIL_KEY, start) ) {
+            int from = i + XIL_KEY.length();
+            int end = t.indexOf(XIL_END, from);
+            int n = end == -1 || end - from > 9 ? -1 : snippetIndex(t, from, end);
+            if( n == -1 ) {
+                sb.append(t, start, from);
+                start = from;
+                continue;
+            }
+            sb.append(t, start, i).append(snippets.get(n));
+            start = end + XIL_END.length();
+        }
+        return sb.append(t, start, t.length()).toString();
+    }
+    
+    // index of the snippet whose key has the digits t[from,end), -1 if there is none
+    private int snippetIndex(String t, int from, int end) {
+        if( from == end )
+            return -1;
+        int n = 0;
+        for( int i=from; i<end; i++ ) {
+            char c = t.charAt(i);
+            if( c < '0' || c > '9' )
+                return -1;
+            n = n*10 + c - '0';
+        }
+        return n < snippets.size() ? n : -1;
     }
     
     private String flowCode(String text) {
         text = "<code>" + replaceUnkindChar(text) + "</code>";
         if( !preserveWhitespace )
-            text = text.replaceAll("\\n", "<br />");
+            text = replaceNewlines(text, "<br />");
         return text;
     }
     
@@ -616,13 +679,9 @@ public class InlineMarkup {
             "&"
             );
     
-    // snippets, nomod (==...==), code (@...@) and html to handle specially
-    private HashMap<String,String> snippetMap = new HashMap<String,String>(64);
-    
-    private static int nextKeyId = 0;
-    
-    private static Pattern SNIPPET_RESTORE_PATTERN = Pattern.compile(
-            "(?sm)(" +XIL_KEY+ "\\d+" + XIL_END + ")" );
+    // snippets, nomod (==...==), code (@...@) and html to handle specially,
+    // indexed by their keys
+    private ArrayList<String> snippets = new ArrayList<String>(64);
     
     
     // {{{ instance fields and methods ------------------------------------------
@@ -631,6 +690,7 @@ public class InlineMarkup {
     private Block block;
     private Task task;
     private Env env;
+    private Regex regex = new Regex();
     
     // if true, preserves whitespace at beginning of lines and prevents translation of '\n' to <br />
     private boolean preserveWhitespace;
@@ -643,7 +703,7 @@ public class InlineMarkup {
      * @return the translated string
      */
     public String translate(Block block) {
-        init( block, false);
+        init(block, block.getTask(), block.linesAsStringTrim(), false);
         return translate();
     }
     
@@ -654,13 +714,12 @@ public class InlineMarkup {
      * @return the translated string
      */
     public String translateKeepNL(Block block) {
-        init(block, true);
+        init(block, block.getTask(), block.linesAsString(), true);
         return translate();
     }
     
     public String translateKeepNL(Block block, String text) {
-        init(block, true);
-        this.text = text;
+        init(block, block.getTask(), text, true);
         return translate();
     }
     
@@ -672,18 +731,12 @@ public class InlineMarkup {
      * @return translated string
      */
     public String translate(Task task, String text) {
-        this.text = text;
-        this.task = task;
-        env = task.getEnv();
-        nextKeyId = 0;
+        init(null, task, text, false);
         return translate();
     }
     
     public String translateKM(Task task, String text) {
-        this.text = text;
-        this.task = task;
-        env = task.getEnv();
-        nextKeyId = 0;
+        init(null, task, text, false);
         keyValueSub();
         execMacros();
         return this.text;
@@ -693,67 +746,304 @@ public class InlineMarkup {
     }
     
     
-    private void init(Block block, boolean preserveWhitespace) {
+    /**
+     * stores text which the rest of the translation must leave alone, such as
+     * HTML added by an {@link InlineRule}, and returns the key to put in its place.
+     * The key is replaced by the text before the Restore phase.
+     * @param snippet text to protect
+     * @return key standing for the text
+     */
+    public String protect(String snippet) {
+        StringBuilder sb = new StringBuilder();
+        storeSnippet(sb, snippet);
+        return sb.toString();
+    }
+    
+    /**
+     * @return the Regex object this engine uses, which has scanned the text of the
+     * current translation for markers
+     */
+    public Regex getRegex() {
+        return regex;
+    }
+    
+    /**
+     * drops the state of the last translation, so an idle engine holds no task,
+     * block or text.
+     */
+    void clear() {
+        init(null, null, null, false);
+    }
+    
+    // every entry point sets all of the state of a translation here, an engine is
+    // reused and must not carry anything from one translation into the next
+    private void init(Block block, Task task, String text, boolean preserveWhitespace) {
         
+        this.block = block;
+        this.task = task;
+        this.text = text;
         this.preserveWhitespace = preserveWhitespace;
-        this.text = preserveWhitespace? block.linesAsString() : block.linesAsStringTrim();
-        task = block.getTask();
-        env = task.getEnv();
-        nextKeyId = 0;
+        env = task == null ? null : task.getEnv();
+        
+        // keys are numbered from zero for every translation, so snippets left
+        // from an earlier one must not be restored into this one
+        snippets.clear();
+        regex.clear();
     }
     
     private void keyValueSub() {
-        text = keyValueSubTrans.apply( task, text );
+        text = keyValueSubTrans.apply(regex, task, text);
     }
     
     private void execMacros() {
-        text = execMacrosTrans.apply( task, text );
+        text = execMacrosTrans.apply(regex, task, text);
     }
     
     private String translate() {
         
+        InlineRules rules = env.getInlineRules();
+        String plain = rules.triggers(text) ? null : translatePlain();
+        if( plain != null ) {
+            text = plain;
+            return text;
+        }
+        
         keyValueSub();
         execMacros();
         
         // mark special no-mod, code, and html sections of text
-        text = noModTrans.apply(task, text);
-        text = noModEmbeddedTrans.apply(task, text);
-        text = codeTrans.apply(task, text);
-        text = codeEmbeddedTrans.apply(task, text);
-        text = existingMarkupTrans.apply(task, text);
+        text = noModTrans.apply(regex, task, text);
+        text = noModEmbeddedTrans.apply(regex, task, text);
+        text = codeTrans.apply(regex, task, text);
+        text = codeEmbeddedTrans.apply(regex, task, text);
+        text = existingMarkupTrans.apply(regex, task, text);
+        text = rules.apply(InlineRule.Phase.Protect, this, task, text);
         
         // links and images
-        text = linkEmbeddedTrans.apply(task, text);
-        text = linkTrans.apply(task, text);
-        text = imgEmbeddedTrans.apply(task, text);
-        text = imgTrans.apply(task, text);
-        text = imgLinkEmbeddedTrans.apply(task, text);
-        text = imgLinkTrans.apply(task, text);
-        text = existingMarkupTrans.apply(task, text);
+        text = linkEmbeddedTrans.apply(regex, task, text);
+        text = linkTrans.apply(regex, task, text);
+        text = imgEmbeddedTrans.apply(regex, task, text);
+        text = imgTrans.apply(regex, task, text);
+        text = imgLinkEmbeddedTrans.apply(regex, task, text);
+        text = imgLinkTrans.apply(regex, task, text);
+        text = rules.apply(InlineRule.Phase.Link, this, task, text);
+        text = existingMarkupTrans.apply(regex, task, text);
         
-        // save '&' to restore at end, preserves any existing entites
-        text = ampersandStoreTrans.replace(text);
-        text = replaceUnkindChar(text);
-        text = ampersandRestoreTrans.replace(text);
+        // '&' of existing entities is kept
+        text = escapeText(text);
+        text = rules.apply(InlineRule.Phase.Escape, this, task, text);
         
-        text = phrases(task, text);
-        text = existingMarkupTrans.apply(task, text);
-        text = cers(text);
+        text = phrases(regex, task, text);
+        text = existingMarkupTrans.apply(regex, task, text);
+        text = cers(regex, text);
+        text = rules.apply(InlineRule.Phase.Phrase, this, task, text);
         
         // replace stored snippets (from html, code, and noMod)
-        if( snippetMap.size() > 0 ) {
-            text = env.getRegex().applyTrans( task, text, SNIPPET_RESTORE_PATTERN, new Trans() {
-                public void apply(Task task,  StringBuilder sb, Matcher m ) {
-                    sb.append( snippetMap.get(m.group(1)) );
-                }
-            });
-        }
+        if( snippets.size() > 0 )
+            text = restoreSnippets(text);
+        text = rules.apply(InlineRule.Phase.Restore, this, task, text);
         
-        if( !preserveWhitespace )
-            text = breakLines(text);
+        if( !preserveWhitespace ) {
+            buffer.setLength(0);
+            text = replaceNewlines(buffer, text, "<br />\n");
+        }
         return text;
     }
     
+    // {{{ escaping -------------------------------------------------------------
+    
+    // reused by escapeText() and translate(), holds no state between calls
+    private StringBuilder buffer = new StringBuilder(256);
+    
+    // text containing this can form AMP_SUB with a substitute after it, see escapeText()
+    private static final String AMP_SUB_PREFIX = AMP_SUB.substring(0, 3);
+    
+    /**
+     * transforms <code>&gt;</code>, <code>&lt;</code> and <code>&amp;</code> to
+     * character entities except the <code>&amp;</code> of an existing entity, in
+     * one scan.  The result is that of ampersandStoreTrans, replaceUnkindChar() and
+     * ampersandRestoreTrans applied in turn.
+     * @param t text to transform
+     * @return resulting translation
+     */
+    private String escapeText(String t) {
+        
+        if( t.indexOf(AMP_SUB_PREFIX) != -1 ) {
+            // the restore would also replace text which looks like the substitute
+            t = ampersandStoreTrans.replace(t);
+            t = replaceUnkindChar(t);
+            return ampersandRestoreTrans.replace(t);
+        }
+        int i = firstUnkindChar(t);
+        if( i == -1 )
+            return t;
+        buffer.setLength(0);
+        return escape(buffer, t, i, true);
+    }
+    
+    private static int firstUnkindChar(String s) {
+        for( int i=0; i<s.length(); i++ ) {
+            char c = s.charAt(i);
+            if( c == '&' || c == '<' || c == '>' )
+                return i;
+        }
+        return -1;
+    }
+    
+    // escapes s from index i on, appending to sb, which holds nothing of s yet
+    private static String escape(StringBuilder sb, String s, int i, boolean keepEntities) {
+        sb.append(s, 0, i);
+        for( int len=s.length(); i<len; i++ ) {
+            char c = s.charAt(i);
+            switch( c ) {
+                case '&':
+                    sb.append(keepEntities && isEntity(s, i) ? "&" : "&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+    
+    private static String replaceNewlines(String s, String replacement) {
+        if( s.indexOf('\n') == -1 )
+            return s;
+        return replaceNewlines(new StringBuilder(s.length() + 64), s, replacement);
+    }
+    
+    private static String replaceNewlines(StringBuilder sb, String s, String replacement) {
+        int start = 0;
+        for( int i = s.indexOf('\n'); i != -1; i = s.indexOf('\n', start) ) {
+            sb.append(s, start, i).append(replacement);
+            start = i + 1;
+        }
+        if( start == 0 )
+            return s;
+        return sb.append(s, start, s.length()).toString();
+    }
+    // }}}
+    
+    
+    // {{{ plain text -----------------------------------------------------------
+    
+    private StringBuilder plain = new StringBuilder(256);
+    
+    /**
+     * translates text in a single scan if none of the transformations in
+     * translate() can match it, which is the case for most prose.  The scan gives
+     * up as soon as it finds a character that could start markup:
+     * <UL>
+     * <LI><code>&lt; [ `</code> anywhere, <code>${ &amp;{</code>, <code>--</code>,
+     * and <code>(c) (r) (tm)</code></LI>
+     * <LI>a phrase, link, image, code or no-mod marker at the start of a line or
+     * after whitespace, <code>&gt;</code> or <code>`</code>, the only places these
+     * patterns can open</LI>
+     * <LI>three upper case letters or digits starting with a letter, a possible
+     * acronym</LI>
+     * </UL>
+     * Otherwise the result is the text with <code>&gt;</code>, <code>&amp;</code> and
+     * newlines converted exactly as the regular expressions would convert them.
+     * @return the translation or null if the full translation is required
+     */
+    private String translatePlain() {
+        
+        String t = text;
+        int len = t.length();
+        plain.setLength(0);
+        
+        for( int i=0; i<len; i++ ) {
+            char c = t.charAt(i);
+            char next = i+1<len ? t.charAt(i+1) : 0;
+            switch( c ) {
+                case '<':
+                case '[':
+                case '`':
+                    return null;
+                case '$':
+                    if( next == '{' )
+                        return null;
+                    plain.append(c);
+                    break;
+                case '&':
+                    if( next == '{' )
+                        return null;
+                    plain.append(isEntity(t, i) ? "&" : "&amp;");
+                    break;
+                case '>':
+                    plain.append("&gt;");
+                    break;
+                case '(':
+                    if( t.startsWith("(c)", i) || t.startsWith("(C)", i)
+                    || t.startsWith("(r)", i) || t.startsWith("(R)", i)
+                    || t.startsWith("(tm)", i) || t.startsWith("(TM)", i) )
+                        return null;
+                    plain.append(c);
+                    break;
+                case '-': case '*': case '_': case '?': case '+': case '~': case '^': case '%':
+                case '=': case '@': case '!': case '"':
+                    if( c == '-' && next == '-' || i == 0 || opensMarkup(t.charAt(i-1)) )
+                        return null;
+                    plain.append(c);
+                    break;
+                case '\n':
+                    plain.append(preserveWhitespace ? "\n" : "<br />\n");
+                    break;
+                default:
+                    if( c >= 'A' && c <= 'Z' && i+2 < len
+                            && isAcronymChar(next) && isAcronymChar(t.charAt(i+2)) )
+                        return null;
+                    plain.append(c);
+            }
+        }
+        return plain.toString();
+    }
+    
+    // characters after which a marker may open a phrase, see PREFIX_REGEX, note
+    // that ^ matches after any line terminator in multiline mode
+    private static boolean opensMarkup(char c) {
+        switch( c ) {
+            case ' ': case '\t': case '\n': case '\u000B': case '\f': case '\r':
+            case '\u0085': case '\u2028': case '\u2029':
+            case '>': case '`':
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    private static boolean isAcronymChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+    
+    // same test as ampersandStoreTrans
+    private static boolean isEntity(String t, int amp) {
+        int len = t.length();
+        int i = amp+1;
+        int n = 0;
+        while( i+n < len && isEntityNameChar(t.charAt(i+n)) && n < 2 )
+            n++;
+        if( n == 2 )
+            return true;
+        if( i >= len || t.charAt(i) != '#' )
+            return false;
+        i++;
+        n = 0;
+        while( i+n < len && t.charAt(i+n) >= '0' && t.charAt(i+n) <= '9' )
+            n++;
+        return n >= 2 && n <= 4 && i+n < len && t.charAt(i+n) == ';';
+    }
+    
+    private static boolean isEntityNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '1' && c <= '4');
+    }
+    // }}}
     
     /**
      * transforms <code>&gt;</code>, <code>&lt;</code> and <code>&amp;</code> to
@@ -764,9 +1054,10 @@ public class InlineMarkup {
      * @return resulting translation
      */
     public static String replaceUnkindChar(String s) {
-        s = s.replaceAll("&", "&amp;");
-        s = s.replaceAll(">", "&gt;");
-        return s.replaceAll("<", "&lt;");
+        int i = firstUnkindChar(s);
+        if( i == -1 )
+            return s;
+        return escape(new StringBuilder(s.length() + 16), s, i, false);
     }
     
     /**
@@ -775,7 +1066,7 @@ public class InlineMarkup {
      * @return text with &lt;br /&gt; substituted
      */
     public static String breakLines(String s){
-        return s.replaceAll("\n", "<br />\n");
+        return replaceNewlines(s, "<br />\n");
     }
     // }}}
     
@@ -0,0 +1,65 @@
+/*
+ Copyright (c) 2004 - 2006 Andy Streich
+ Distributed under the GNU General Public License available at http://www.gnu.org/licenses/gpl.html,
+ a copy of which is provided with the Xilize source code.
+ */
+
+package com.centeredwork.xilize;
+
+/**
+ * a rule translating project specific inline markup in Java, a faster alternative
+ * to BeanShell macros.  Rules are kept by {@link InlineRules}, which loads the
+ * implementations listed on the class path in
+ * <CODE>META-INF/services/com.centeredwork.xilize.InlineRule</CODE>.
+ *
+ * <p>{@link InlineMarkup} runs each rule at the end of the rule's {@link Phase},
+ * after its own transformations for that phase, and only on text containing one of
+ * the rule's trigger characters.  Rules of the same phase run in the order they
+ * were added.  One instance serves all threads, so a rule should keep no state
+ * between calls.
+ */
+public interface InlineRule {
+    
+    /**
+     * the steps of an inline translation, see InlineMarkup.translate().
+     */
+    public enum Phase {
+        
+        /** no-mod, code and existing HTML have been replaced by snippet keys */
+        Protect,
+        
+        /** links and images have been translated */
+        Link,
+        
+        /** <code>&lt; &gt; &amp;</code> have been escaped */
+        Escape,
+        
+        /** phrases, footnote markers, acronyms and character entities have been translated */
+        Phrase,
+        
+        /** snippets have been restored, newlines not yet translated */
+        Restore
+    }
+    
+    /**
+     * @return phase at the end of which the rule runs
+     */
+    public Phase getPhase();
+    
+    /**
+     * @return characters one of which text must contain for the rule to run, the
+     * empty string to run it on all text
+     */
+    public String getTriggers();
+    
+    /**
+     * translates text.  Output which later phases must leave alone, such as HTML
+     * added before the Escape phase, can be protected with
+     * {@link InlineMarkup#protect(String)}.
+     * @param inline engine translating the text
+     * @param task current task
+     * @param text text to translate
+     * @return the translated text, or <I>text</I> if there is nothing to translate
+     */
+    public String apply(InlineMarkup inline, Task task, String text);
+}
@@ -0,0 +1,174 @@
+/*
+ Copyright (c) 2004 - 2006 Andy Streich
+ Distributed under the GNU General Public License available at http://www.gnu.org/licenses/gpl.html,
+ a copy of which is provided with the Xilize source code.
+ */
+
+package com.centeredwork.xilize;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * the inline rules of a run, see {@link InlineRule} and {@link Env#getInlineRules()}.
+ *
+ * <p>Rules are compiled into a table holding the rules of each phase in order
+ * together with the marker ids of their trigger characters.  The triggers are
+ * markers like those of Regex transformations, so the Regex object translating a
+ * block tests them in the same scan as its own markers.  Those markers are global
+ * to the process: each Env loads its own rules, but a trigger character already
+ * registered, by this or another Env, is not added again.
+ */
+public class InlineRules {
+    
+    /**
+     * the compiled rules, replaced, never changed, when a rule is added.
+     */
+    private static class Table {
+        
+        InlineRule[][] rules = new InlineRule[InlineRule.Phase.values().length][];
+        int[][][] ids = new int[rules.length][][];  // marker ids of each rule's triggers, null for all text
+        boolean[] ascii = new boolean[128];         // ASCII triggers of all rules
+        StringBuilder others = new StringBuilder(); // the rest
+        boolean always;                             // a rule has no triggers
+        boolean empty;
+        
+        Table(List<InlineRule> list) {
+            empty = list.isEmpty();
+            for( InlineRule.Phase p : InlineRule.Phase.values() ) {
+                ArrayList<InlineRule> phase = new ArrayList<InlineRule>();
+                for( InlineRule r : list ) {
+                    if( r.getPhase() == p )
+                        phase.add(r);
+                }
+                rules[p.ordinal()] = phase.toArray(new InlineRule[phase.size()]);
+                ids[p.ordinal()] = new int[phase.size()][];
+                for( int i=0; i<phase.size(); i++ )
+                    ids[p.ordinal()][i] = triggers(phase.get(i).getTriggers());
+            }
+        }
+        
+        private int[] triggers(String s) {
+            if( s == null || s.length() == 0 ) {
+                always = true;
+                return null;
+            }
+            int[] a = new int[s.length()];
+            for( int i=0; i<s.length(); i++ ) {
+                char c = s.charAt(i);
+                if( c < 128 )
+                    ascii[c] = true;
+                else
+                    others.append(c);
+                a[i] = Regex.markerId(String.valueOf(c));
+            }
+            return a;
+        }
+    }
+    
+    private final ArrayList<InlineRule> list = new ArrayList<InlineRule>();
+    private volatile Table table = new Table(list);
+    
+    InlineRules() {}
+    
+    /**
+     * creates an instance with the rules found by java.util.ServiceLoader.  A rule
+     * which cannot be loaded is reported and skipped.
+     * @param reporter reporter for rules which cannot be loaded
+     * @return the rules
+     */
+    static InlineRules load(Reporter reporter) {
+        InlineRules rules = new InlineRules();
+        Iterator<InlineRule> i = ServiceLoader.load(InlineRule.class).iterator();
+        while( true ) {
+            try {
+                if( !i.hasNext() )
+                    break;
+                rules.list.add(i.next());
+            } catch( ServiceConfigurationError e ) {
+                reporter.error("inline rule not loaded: "+e.getMessage());
+            }
+        }
+        rules.table = new Table(rules.list);
+        return rules;
+    }
+    
+    /**
+     * adds a rule after the rules already added.
+     * @param rule rule to add
+     */
+    public synchronized void add(InlineRule rule) {
+        list.add(rule);
+        table = new Table(list);
+    }
+    
+    /**
+     * @return the rules in the order they were added
+     */
+    public synchronized List<InlineRule> getRules() {
+        return new ArrayList<InlineRule>(list);
+    }
+    
+    boolean isEmpty() {
+        return table.empty;
+    }
+    
+    /**
+     * @param text text to test
+     * @return true if a rule may run on the text
+     */
+    boolean triggers(String text) {
+        Table t = table;
+        if( t.empty )
+            return false;
+        if( t.always )
+            return true;
+        for( int i=0; i<text.length(); i++ ) {
+            char c = text.charAt(i);
+            if( c < 128 ? t.ascii[c] : t.others.indexOf(String.valueOf(c)) != -1 )
+                return true;
+        }
+        return false;
+    }
+    
+    /**
+     * runs the rules of a phase whose triggers the text contains.  A rule throwing
+     * an exception is reported and its translation skipped.
+     * @param phase phase just completed
+     * @param inline engine translating the text
+     * @param task current task
+     * @param text text to translate
+     * @return translated text
+     */
+    String apply(InlineRule.Phase phase, InlineMarkup inline, Task task, String text) {
+        Table t = table;
+        InlineRule[] rules = t.rules[phase.ordinal()];
+        int[][] ids = t.ids[phase.ordinal()];
+        Regex regex = inline.getRegex();
+        for( int i=0; i<rules.length; i++ ) {
+            if( !triggered(regex, text, ids[i]) )
+                continue;
+            try {
+                String s = rules[i].apply(inline, task, text);
+                if( s != null )
+                    text = s;
+            } catch( RuntimeException e ) {
+                task.error("inline rule "+rules[i].getClass().getName()+" failed", e);
+            }
+        }
+        return text;
+    }
+    
+    private static boolean triggered(Regex regex, String text, int[] ids) {
+        if( ids == null )
+            return true;
+        for( int id : ids ) {
+            if( regex.mayMatch(text, id) )
+                return true;
+        }
+        return false;
+    }
+}
@@ -28,6 +28,12 @@ public enum Key {
     
     _CommandLine_,
     _SingleThread_,
+    _Threads_,      // number of files translated concurrently, 0 for one per processor
+    _Incremental_("false"), // translate only files whose sources changed, see Manifest
+    _Metrics_("false"),     // collect timings and counters, see Metrics
+    _MetricsFile_,          // JSON file the metrics are written to, implies _Metrics_
+    _StreamOutput_("false"), // write each top level block as soon as it is translated
+    _PureMacros_,           // comma-separated &{func:text} macros whose results are cached
     _XilizeConfigFile_,
     _Natural_("true"),
     _TargetFile_,
@@ -112,6 +118,17 @@ public enum Key {
     ;  // end of keys ********************************************************
     
     private String init;    // null if no initial/default value
+    
+    private static final HashMap<String,Key> BY_NAME = new HashMap<String,Key>();
+    static {
+        for( Key k : values() )
+            BY_NAME.put(k.name(), k);
+    }
+    
+    /**
+     * number of keys, the size of the arrays in which tasks keep their values.
+     */
+    static final int COUNT = BY_NAME.size();
 
     /**
      * constructs a key with an initial (default) value
@@ -141,5 +158,14 @@ public enum Key {
         }
     }
     
+    /**
+     * gets the key with a given name.
+     * @param name key name
+     * @return the key, null if <I>name</I> is not a built-in key
+     */
+    static Key forName(String name) {
+        return BY_NAME.get(name);
+    }
+    
     
 }
@@ -7,6 +7,7 @@
 
 package com.centeredwork.xilize;
 import java.io.File;
+import java.io.IOException;
 import java.text.NumberFormat;
 import java.util.HashMap;
 
@@ -48,6 +49,7 @@ public class Main {
         int i = 0;
         boolean dirOnly = false;
         boolean findRoot = false;
+        boolean watch = false;
         
         
         
@@ -68,6 +70,31 @@ public class Main {
                 dirOnly = true;
             } else if( s.matches("-fr|--find-root")) {
                 findRoot = true;
+            } else if( s.matches("-i|--incremental")) {
+                map.put(Key._Incremental_.name(), "true");
+            } else if( s.matches("-w|--watch")) {
+                watch = true;
+                map.put(Key._Incremental_.name(), "true");
+            } else if( s.matches("-m|--metrics")) {
+                map.put(Key._Metrics_.name(), "true");
+            } else if( s.matches("-mf|--metrics-file") ) {
+                if( i+1 >= args.length ) {
+                    quit("metrics file must be specified with this option");
+                    return;
+                } else {
+                    i++;
+                    map.put(Key._MetricsFile_.name(), args[i]);
+                }
+            } else if( s.matches("-so|--stream-output")) {
+                map.put(Key._StreamOutput_.name(), "true");
+            } else if( s.matches("-t|--threads") ) {
+                if( i+1 >= args.length ) {
+                    quit("number of threads must be specified with this option");
+                    return;
+                } else {
+                    i++;
+                    map.put(Key._Threads_.name(), args[i]);
+                }
             }
             i++;
         }
@@ -127,6 +154,19 @@ public class Main {
         
         Xilize2.startup(new ReporterStd(), new BeanShell(), map);
         
+        Xilize2 x = translate(target, qualifier, dirOnly);
+        
+        if( watch ) {
+            watch(x, target, qualifier, dirOnly);
+        }
+        
+        Xilize2.shutdown();
+        System.exit( x.getResultCode().getExitCode() );
+        
+    }
+    
+    private static Xilize2 translate(File target, File qualifier, boolean dirOnly) {
+        
         Xilize2 x = new Xilize2();
         if( target == null && qualifier == null ) {
             ;
@@ -161,10 +201,34 @@ public class Main {
         nf.setMinimumFractionDigits(1);
         
         System.out.println("translated ("+nf.format(time/1000.)+" seconds)");
+        return x;
+    }
+    
+    /**
+     * translates again, incrementally, each time something changes under the target
+     * directory.  Returns only if the directory cannot be watched.
+     */
+    private static void watch(Xilize2 x, File target, File qualifier, boolean dirOnly) {
         
-        Xilize2.shutdown();
-        System.exit( x.getResultCode().getExitCode() );
-        
+        File dir = target == null || target.isDirectory() ? target : target.getParentFile();
+        if( dir == null ) {
+            System.err.println("nothing to watch");
+            return;
+        }
+        try {
+            Watcher watcher = new Watcher(dir);
+            if( x.isDefined(Key._MetricsFile_) )
+                watcher.ignore(new File(x.value(Key._MetricsFile_)));
+            while( true ) {
+                System.out.println("watching "+dir.getAbsolutePath()+" for changes");
+                watcher.awaitChange(x.value(Key._OutputExtension_));
+                x = translate(target, qualifier, dirOnly);
+            }
+        } catch (IOException ex) {
+            System.err.println("cannot watch "+dir.getAbsolutePath()+": "+ex.getMessage());
+        } catch (InterruptedException ex) {
+            ;
+        }
     }
     
     private static void quit(String msg) {
@@ -196,6 +260,12 @@ public class Main {
             + "| -do      | --directory-only   | translate single directory only"+NL
             + "| -fr      | --find-root        | automatically locate root directory"+NL
             + "| -h       | --help             | this message"+NL
+            + "| -i       | --incremental      | translate only files changed since the last run"+NL
+            + "| -m       | --metrics          | print timings and counters at the end of a run"+NL
+            + "| -mf file | --metrics-file file| write timings and counters to \"file\" as JSON"+NL
+            + "| -so      | --stream-output    | write blocks as they are translated, saves memory"+NL
+            + "| -t n     | --threads n        | translate files on n threads, 0 for one per processor"+NL
+            + "| -w       | --watch            | keep running, translate again when files change"+NL
             + NL
             + "see http://www.centeredwork.com/xilize2 for more information"+NL;
     
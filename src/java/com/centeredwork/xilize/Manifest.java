@@ -0,0 +1,336 @@
+/*
+ Copyright (c) 2004 - 2006 Andy Streich
+ Distributed under the GNU General Public License available at http://www.gnu.org/licenses/gpl.html,
+ a copy of which is provided with the Xilize source code.
+ */
+
+package com.centeredwork.xilize;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.CodeSource;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The build manifest used by incremental translation (key <CODE>_Incremental_</CODE>).
+ *
+ * <p>For each source file translated the manifest records a stamp for every
+ * dependency in its closure: the source itself, its include files, the config
+ * files and beanshell files of its directory and all ancestor directories, and
+ * the output file.  A source whose recorded stamps all match the files on disk
+ * is up to date and is not translated again.
+ *
+ * <p>Dependency keys are absolute file paths, their stamps are the modification time
+ * and length of the file, "-" if it does not exist.  A key starting with
+ * "dir:" stands for the set of source, include, config, beanshell, and css files
+ * in a directory, so adding or removing one of those invalidates every file
+ * below that directory.
+ *
+ * <p>The header records a stamp of the inputs every page depends on, see
+ * {@link #inputsStamp(File, Task[])}.  When it changes all records are dropped and
+ * every file is translated again.
+ *
+ * <p>The manifest is kept in <CODE>build.xilmanifest</CODE> in the project root.
+ */
+public class Manifest {
+    
+    public static final String FILENAME = "build.xilmanifest";
+    
+    private static final String DIR_PREFIX = "dir:";
+    private static final String LISTING_REGEX = ".*\\.(xil|xilinc|xilconfig|bsh|css)$";
+    private static final String INPUTS_PREFIX = "#inputs\t";
+    
+    // system properties every JVM defines, left out of the inputs stamp
+    private static final String[] JVM_PROPERTY_PREFIXES = {
+        "awt.", "file.", "java.", "javax.", "jdk.", "line.", "native.", "os.",
+        "path.", "stderr.", "stdout.", "sun.", "user."
+    };
+    
+    private File file;
+    private boolean changed;
+    private String inputs;          // inputs stamp read from the header
+    
+    // source path -> (dependency key -> stamp)
+    private TreeMap<String,Map<String,String>> entries = new TreeMap<String,Map<String,String>>();
+    
+    // current stamps, computed once per run
+    private HashMap<String,String> stamps = new HashMap<String,String>();
+    
+    /**
+     * creates an empty manifest for a project.
+     * @param root project root directory
+     */
+    Manifest(File root) {
+        file = new File(root, FILENAME);
+    }
+    
+    /**
+     * reads the existing manifest file, if there is one.
+     * @throws java.io.IOException if the manifest file cannot be read
+     */
+    void load() throws IOException {
+        
+        if( !file.exists() )
+            return;
+    
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            Map<String,String> deps = null;
+            String line;
+            while( (line = reader.readLine()) != null ) {
+                if( line.startsWith(INPUTS_PREFIX) ) {
+                    inputs = line.substring(INPUTS_PREFIX.length());
+                } else if( line.length() == 0 || line.startsWith("#") ) {
+                    continue;
+                } else if( line.charAt(0) != '\t' ) {
+                    deps = new LinkedHashMap<String,String>();
+                    entries.put(line, deps);
+                } else if( deps != null ) {
+                    // tab, stamp, tab, key
+                    int i = line.indexOf('\t', 1);
+                    if( i != -1 )
+                        deps.put(line.substring(i+1), line.substring(1, i));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+    
+    public File getFile() { return file; }
+    
+    /**
+     * drops all records if the inputs every page depends on changed since the
+     * manifest was written, or the manifest has no inputs stamp.
+     * @param stamp current stamp, see {@link #inputsStamp(File, Task[])}
+     * @return true if the records were kept
+     */
+    synchronized boolean checkInputs(String stamp) {
+        if( stamp.equals(inputs) )
+            return true;
+        entries.clear();
+        inputs = stamp;
+        changed = true;
+        return false;
+    }
+    
+    /**
+     * stamp of the inputs every page depends on which no file records: the keys,
+     * abbreviations and signatures defined by the given tasks, including keys set
+     * on the command line, the master config file, and the engine's version and
+     * class files.  System properties every JVM defines are left out, so the stamp
+     * only changes when the inputs do.
+     * @param configFile master config file, may be null
+     * @param tasks tasks whose definitions all pages inherit, normally the master
+     * task and the translation task
+     * @return hash of the inputs
+     */
+    static String inputsStamp(File configFile, Task... tasks) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(configFile == null ? "-" : stamp(configFile));
+        sb.append('\n');
+        sb.append(engineStamp());
+        sb.append('\n');
+        for( Task t : tasks ) {
+            TreeMap<String,String> keys = new TreeMap<String,String>();
+            for( Key k : Key.values() ) {
+                if( t.keyReg[k.ordinal()] != null )
+                    keys.put(k.name(), t.keyReg[k.ordinal()]);
+            }
+            for( Map.Entry<String,String> e : t.defReg.entrySet() ) {
+                if( !isJvmProperty(e.getKey()) )
+                    keys.put(e.getKey(), e.getValue());
+            }
+            for( Map.Entry<String,String> e : keys.entrySet() ) {
+                sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+            }
+            for( Map.Entry<String,String> e : new TreeMap<String,String>(t.abbrevReg).entrySet() ) {
+                sb.append(e.getKey()).append("->").append(e.getValue()).append('\n');
+            }
+            for( String name : new TreeSet<String>(t.sigReg.keySet()) ) {
+                sb.append(name).append('.').append('\n');
+            }
+            sb.append('\n');
+        }
+        return Integer.toHexString(sb.toString().hashCode());
+    }
+    
+    private static boolean isJvmProperty(String key) {
+        for( String prefix : JVM_PROPERTY_PREFIXES ) {
+            if( key.startsWith(prefix) )
+                return true;
+        }
+        return false;
+    }
+    
+    /**
+     * @return the implementation version and the stamp of the class files, the jar
+     * or this class's file, as far as they are known
+     */
+    private static String engineStamp() {
+        Package p = Manifest.class.getPackage();
+        String stamp = p == null ? null : p.getImplementationVersion();
+        try {
+            CodeSource cs = Manifest.class.getProtectionDomain().getCodeSource();
+            if( cs != null && cs.getLocation() != null ) {
+                File f = new File(cs.getLocation().toURI());
+                if( f.isDirectory() )
+                    f = new File(f, Manifest.class.getName().replace('.', '/') + ".class");
+                stamp += "/" + stamp(f);
+            }
+        } catch( Exception e ) {
+            // not a local file or not allowed, the version alone
+        }
+        return stamp;
+    }
+    
+    /**
+     * stamp of a file as recorded in the manifest.
+     * @param f file
+     * @return modification time and length, "-" if the file does not exist
+     */
+    static String stamp(File f) {
+        return f.exists()? f.lastModified() +"/"+ f.length() : "-";
+    }
+    
+    /**
+     * key standing for the listing of a directory.
+     * @param dir directory
+     * @return dependency key
+     */
+    static String listingKey(File dir) {
+        return DIR_PREFIX + dir.getAbsolutePath();
+    }
+    
+    /**
+     * stamp of a directory listing.
+     * @param dir directory
+     * @return hash of the names of the files that affect translation and of the
+     * subdirectories, which are listed in <CODE>_SubDirList_</CODE>
+     */
+    static String listingStamp(File dir) {
+        if( !dir.isDirectory() )
+            return "-";
+        return listingStamp(Files.list(dir));
+    }
+    
+    /**
+     * same as {@link #listingStamp(File)} for a directory already listed.
+     * @param listing the directory's entries
+     * @return hash of the names of the files that affect translation and of the
+     * subdirectories
+     */
+    static String listingStamp(Files.Listing listing) {
+        StringBuilder sb = new StringBuilder();
+        for( File f : listing.files(LISTING_REGEX) ) {
+            sb.append(f.getName());
+            sb.append('/');
+        }
+        sb.append('|');
+        for( File d : listing.dirs(".*") ) {
+            sb.append(d.getName());
+            sb.append('/');
+        }
+        return Integer.toHexString(sb.toString().hashCode());
+    }
+    
+    private synchronized String currentStamp(String key) {
+        String stamp = stamps.get(key);
+        if( stamp == null ) {
+            stamp = key.startsWith(DIR_PREFIX) ?
+                listingStamp(new File(key.substring(DIR_PREFIX.length()))) :
+                stamp(new File(key));
+            stamps.put(key, stamp);
+        }
+        return stamp;
+    }
+    
+    /**
+     * tests if a source file needs translating.
+     * @param source source file
+     * @param deps dependencies known before translation, those of ancestor tasks
+     * @return true if the manifest holds a record for the source, the record includes
+     * every dependency in <I>deps</I>, and every recorded stamp is current
+     */
+    boolean isCurrent(File source, Map<String,String> deps) {
+    
+        Map<String,String> recorded;
+        synchronized( this ) {
+            recorded = entries.get(source.getAbsolutePath());
+        }
+        if( recorded == null )
+            return false;
+        for( Map.Entry<String,String> e : deps.entrySet() ) {
+            if( !e.getValue().equals(recorded.get(e.getKey())) )
+                return false;
+        }
+        for( Map.Entry<String,String> e : recorded.entrySet() ) {
+            if( !e.getValue().equals(currentStamp(e.getKey())) )
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * records the dependencies of a translated source file.
+     * @param source source file
+     * @param deps stamps of all dependencies, including the output file
+     */
+    synchronized void record(File source, Map<String,String> deps) {
+        entries.put(source.getAbsolutePath(), new LinkedHashMap<String,String>(deps));
+        stamps.putAll(deps);
+        changed = true;
+    }
+    
+    /**
+     * removes any record of a source file so it will be translated next time.
+     * @param source source file
+     */
+    synchronized void forget(File source) {
+        if( entries.remove(source.getAbsolutePath()) != null )
+            changed = true;
+    }
+    
+    /**
+     * writes the manifest file if anything changed, records of sources which no
+     * longer exist are dropped.
+     * @throws java.io.IOException if the file cannot be written
+     */
+    synchronized void save() throws IOException {
+    
+        for( Iterator<String> it = entries.keySet().iterator(); it.hasNext(); ) {
+            if( !new File(it.next()).exists() ) {
+                it.remove();
+                changed = true;
+            }
+        }
+        if( !changed )
+            return;
+    
+        PrintWriter pw = new PrintWriter( new BufferedWriter( new FileWriter(file) ) );
+        pw.println("# xilize build manifest, delete to force a full translation");
+        if( inputs != null )
+            pw.println(INPUTS_PREFIX + inputs);
+        for( Map.Entry<String,Map<String,String>> entry : entries.entrySet() ) {
+            pw.println(entry.getKey());
+            for( Map.Entry<String,String> dep : entry.getValue().entrySet() ) {
+                pw.print('\t');
+                pw.print(dep.getValue());
+                pw.print('\t');
+                pw.println(dep.getKey());
+            }
+        }
+        pw.close();
+        changed = false;
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ Copyright (c) 2004 - 2006 Andy Streich
+ Distributed under the GNU General Public License available at http://www.gnu.org/licenses/gpl.html,
+ a copy of which is provided with the Xilize source code.
+ */
+
+package com.centeredwork.xilize;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Formatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timings and counters collected during a run when the <CODE>_Metrics_</CODE> key is
+ * true or <CODE>_MetricsFile_</CODE> is defined.  At the end of the run they are
+ * passed to {@link MetricsReporter#metrics(Metrics)}, or summarized for other
+ * reporters, and, if <CODE>_MetricsFile_</CODE> is defined, written to that file
+ * as JSON.
+ *
+ * <p>For each source file the time spent in each {@link Phase} and the bytes read
+ * and written are recorded.  Blocks are counted by signature name along with the
+ * time spent translating them, which includes the time spent on their child blocks.
+ * BeanShell evaluations, include cache lookups, macro cache lookups, and the key,
+ * signature and URL lookups of source files are counted for the whole run.
+ *
+ * <p>When files are translated concurrently phase times are summed over all
+ * threads and may exceed the elapsed time.
+ */
+public class Metrics {
+    
+    /**
+     * the steps in translating a source file, see TaskFile.xilize().
+     */
+    public enum Phase { Read, Assemble, Exec, Translate, TranslateLast, Write }
+    
+    /**
+     * timings of one source file, used only by the thread translating the file.
+     */
+    public static class Source {
+        
+        private String path;
+        private long[] nanos = new long[Phase.values().length];
+        private long mark = System.nanoTime();
+        private long bytesIn;
+        private long bytesOut;
+        
+        Source(File file) {
+            path = file.getPath();
+        }
+        
+        /**
+         * charges the time since the previous lap, or since this object was
+         * created, to a phase.
+         * @param phase phase just completed
+         */
+        void lap(Phase phase) {
+            long now = System.nanoTime();
+            nanos[phase.ordinal()] += now - mark;
+            mark = now;
+        }
+        
+        void addBytesIn(long n) { bytesIn += n; }
+        void setBytesOut(long n) { bytesOut = n; }
+        
+        public String getPath() { return path; }
+        public long getNanos(Phase phase) { return nanos[phase.ordinal()]; }
+        public long getBytesIn() { return bytesIn; }
+        public long getBytesOut() { return bytesOut; }
+        
+        public long getTotalNanos() {
+            long total = 0;
+            for( long n : nanos )
+                total += n;
+            return total;
+        }
+    }
+    
+    /**
+     * a count and the time taken by the things counted.
+     */
+    public static class Counter {
+        
+        private long count;
+        private long nanos;
+        
+        void add(long nanos) {
+            count++;
+            this.nanos += nanos;
+        }
+        
+        public long getCount() { return count; }
+        public long getNanos() { return nanos; }
+    }
+    
+    private long start = System.nanoTime();
+    private long elapsed = -1;
+    private ArrayList<Source> sources = new ArrayList<Source>();
+    private HashMap<String,Counter> signatures = new HashMap<String,Counter>();
+    private Counter bsh = new Counter();
+    private long includeHits;
+    private long includeMisses;
+    private long macroHits;
+    private long macroMisses;
+    private long lookups;
+    private long lookupMisses;
+    private long generations;
+    
+    Source startSource(File file) {
+        return new Source(file);
+    }
+    
+    synchronized void endSource(Source source) {
+        sources.add(source);
+    }
+    
+    synchronized void signature(String name, long nanos) {
+        Counter c = signatures.get(name);
+        if( c == null ) {
+            c = new Counter();
+            signatures.put(name, c);
+        }
+        c.add(nanos);
+    }
+    
+    synchronized void bsh(long nanos) {
+        bsh.add(nanos);
+    }
+    
+    synchronized void include(boolean hit) {
+        if( hit )
+            includeHits++;
+        else
+            includeMisses++;
+    }
+    
+    synchronized void macro(boolean hit) {
+        if( hit )
+            macroHits++;
+        else
+            macroMisses++;
+    }
+    
+    /**
+     * adds the key, signature and URL lookups of a source file.
+     * @param count lookups made
+     * @param misses lookups not answered by the task's memo, see Task.Resolved
+     */
+    synchronized void lookups(long count, long misses) {
+        lookups += count;
+        lookupMisses += misses;
+    }
+    
+    /**
+     * counts a change to registries a descendant task has searched, which empties
+     * the lookup memos of all tasks.
+     */
+    synchronized void generation() {
+        generations++;
+    }
+    
+    /**
+     * marks the end of the run.
+     */
+    synchronized void finish() {
+        elapsed = System.nanoTime() - start;
+    }
+    
+    /**
+     * @return time from the start of the run to its end, or to now if it has not ended
+     */
+    public synchronized long getElapsedNanos() {
+        return elapsed == -1 ? System.nanoTime() - start : elapsed;
+    }
+    
+    /**
+     * @return per file timings in the order the files were finished
+     */
+    public synchronized List<Source> getSources() {
+        return new ArrayList<Source>(sources);
+    }
+    
+    /**
+     * @return block counts and translation times keyed by signature name
+     */
+    public synchronized Map<String,Counter> getSignatures() {
+        return new HashMap<String,Counter>(signatures);
+    }
+    
+    public synchronized Counter getBeanShell() { return bsh; }
+    public synchronized long getIncludeHits() { return includeHits; }
+    public synchronized long getIncludeMisses() { return includeMisses; }
+    public synchronized long getMacroHits() { return macroHits; }
+    public synchronized long getMacroMisses() { return macroMisses; }
+    public synchronized long getLookups() { return lookups; }
+    public synchronized long getLookupMisses() { return lookupMisses; }
+    public synchronized long getGenerations() { return generations; }
+    
+    public synchronized long getNanos(Phase phase) {
+        long total = 0;
+        for( Source s : sources )
+            total += s.getNanos(phase);
+        return total;
+    }
+    
+    public synchronized long getBytesIn() {
+        long total = 0;
+        for( Source s : sources )
+            total += s.getBytesIn();
+        return total;
+    }
+    
+    public synchronized long getBytesOut() {
+        long total = 0;
+        for( Source s : sources )
+            total += s.getBytesOut();
+        return total;
+    }
+    
+    /**
+     * formats a summary: totals, phases, the slowest files, and the signatures which
+     * took the most time.
+     * @param top number of files and signatures to list
+     * @return a multi-line table
+     */
+    public synchronized String summary(int top) {
+        
+        Formatter f = new Formatter(new StringBuilder(), Locale.US);
+        f.format("%d files in %.1f ms, %d bytes in, %d bytes out%n",
+                sources.size(), millis(getElapsedNanos()), getBytesIn(), getBytesOut());
+        f.format("beanshell: %d evaluations, %.1f ms; include cache: %d hits, %d misses; macro cache: %d hits, %d misses%n",
+                bsh.getCount(), millis(bsh.getNanos()), includeHits, includeMisses, macroHits, macroMisses);
+        f.format("lookups: %d, %.1f%% from memo; %d generations%n",
+                lookups, lookups == 0 ? 0. : 100. * (lookups - lookupMisses) / lookups, generations);
+        
+        f.format("%n%-16s %12s%n", "phase", "ms");
+        for( Phase p : Phase.values() )
+            f.format("%-16s %12.1f%n", p, millis(getNanos(p)));
+        
+        ArrayList<Source> slowest = new ArrayList<Source>(sources);
+        Collections.sort(slowest, new Comparator<Source>() {
+            public int compare(Source a, Source b) {
+                return Long.signum(b.getTotalNanos() - a.getTotalNanos());
+            }
+        });
+        f.format("%n%10s %10s %10s  %s%n", "ms", "bytes in", "bytes out", "file");
+        for( Source s : slowest.subList(0, Math.min(top, slowest.size())) )
+            f.format("%10.1f %10d %10d  %s%n", millis(s.getTotalNanos()), s.getBytesIn(), s.getBytesOut(), s.getPath());
+        
+        ArrayList<Map.Entry<String,Counter>> sigs = new ArrayList<Map.Entry<String,Counter>>(signatures.entrySet());
+        Collections.sort(sigs, new Comparator<Map.Entry<String,Counter>>() {
+            public int compare(Map.Entry<String,Counter> a, Map.Entry<String,Counter> b) {
+                return Long.signum(b.getValue().getNanos() - a.getValue().getNanos());
+            }
+        });
+        f.format("%n%-16s %10s %10s%n", "signature", "blocks", "ms");
+        for( Map.Entry<String,Counter> e : sigs.subList(0, Math.min(top, sigs.size())) )
+            f.format("%-16s %10d %10.1f%n", e.getKey(), e.getValue().getCount(), millis(e.getValue().getNanos()));
+        
+        return f.toString();
+    }
+    
+    /**
+     * writes all metrics as a JSON object, times are in milliseconds.
+     * @param file file to write
+     * @throws java.io.IOException if the file cannot be written
+     */
+    public synchronized void writeJson(File file) throws IOException {
+        
+        PrintWriter pw = new PrintWriter( new BufferedWriter( new FileWriter(file) ) );
+        pw.println("{");
+        pw.println("  \"elapsedMillis\": " + number(getElapsedNanos()) + ",");
+        pw.println("  \"files\": " + sources.size() + ",");
+        pw.println("  \"bytesIn\": " + getBytesIn() + ",");
+        pw.println("  \"bytesOut\": " + getBytesOut() + ",");
+        pw.println("  \"beanshell\": { \"evaluations\": " + bsh.getCount()
+                + ", \"millis\": " + number(bsh.getNanos()) + " },");
+        pw.println("  \"includeCache\": { \"hits\": " + includeHits
+                + ", \"misses\": " + includeMisses + " },");
+        pw.println("  \"macroCache\": { \"hits\": " + macroHits
+                + ", \"misses\": " + macroMisses + " },");
+        pw.println("  \"lookups\": { \"count\": " + lookups
+                + ", \"misses\": " + lookupMisses + ", \"generations\": " + generations + " },");
+        
+        pw.print("  \"phases\": {");
+        String sep = " ";
+        for( Phase p : Phase.values() ) {
+            pw.print(sep + quote(key(p)) + ": " + number(getNanos(p)));
+            sep = ", ";
+        }
+        pw.println(" },");
+        
+        pw.println("  \"signatures\": {");
+        sep = "";
+        for( Map.Entry<String,Counter> e : signatures.entrySet() ) {
+            pw.print(sep + "    " + quote(e.getKey()) + ": { \"blocks\": " + e.getValue().getCount()
+                    + ", \"millis\": " + number(e.getValue().getNanos()) + " }");
+            sep = ",\n";
+        }
+        pw.println();
+        pw.println("  },");
+        
+        pw.println("  \"sources\": [");
+        sep = "";
+        for( Source s : sources ) {
+            pw.print(sep + "    { \"path\": " + quote(s.getPath())
+                    + ", \"bytesIn\": " + s.getBytesIn()
+                    + ", \"bytesOut\": " + s.getBytesOut()
+                    + ", \"millis\": " + number(s.getTotalNanos()));
+            for( Phase p : Phase.values() )
+                pw.print(", " + quote(key(p)) + ": " + number(s.getNanos(p)));
+            pw.print(" }");
+            sep = ",\n";
+        }
+        pw.println();
+        pw.println("  ]");
+        pw.println("}");
+        pw.close();
+    }
+    
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+    
+    private static String number(long nanos) {
+        return String.format(Locale.US, "%.3f", millis(nanos));
+    }
+    
+    private static String key(Phase p) {
+        return Character.toLowerCase(p.name().charAt(0)) + p.name().substring(1);
+    }
+    
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for( int i=0; i<s.length(); i++ ) {
+            char c = s.charAt(i);
+            switch( c ) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if( c < ' ' )
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ Copyright (c) 2004 - 2006 Andy Streich
+ Distributed under the GNU General Public License available at http://www.gnu.org/licenses/gpl.html,
+ a copy of which is provided with the Xilize source code.
+ */
+
+package com.centeredwork.xilize;
+
+/**
+ * A Reporter which receives the metrics collected during a run (see the
+ * <CODE>_Metrics_</CODE> key) rather than a summary passed to
+ * {@link Reporter#report(Object)}.  It is a separate interface so existing Reporter
+ * implementations need not change.
+ */
+public interface MetricsReporter extends Reporter {
+    
+    /**
+     * called at the end of each run that collected metrics.
+     * @param metrics the run's metrics
+     */
+    public void metrics( Metrics metrics );
+}
@@ -1,20 +1,189 @@
 package com.centeredwork.xilize;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * advanced regular expression support.  Instances of this class are thread safe.
+ * advanced regular expression support.  Instances of this class reuse a buffer
+ * and are not thread safe, {@link Env#getRegex()} provides one per thread.
+ *
+ * <p>Transformations skip text which does not contain their marker.  Given a
+ * Regex object they test for it with {@link #mayMatch(String,int)}, which scans the
+ * text once for the markers of all transformations and answers from that scan
+ * until it is given different text.
  */
 
 public class Regex {
     
     private static final int BUFFER_SIZE = 1024;
+    private static final int SCAN_AFTER = 4;    // tests of the same text before it is scanned
+    
+    /**
+     * a marker standing for an upper case letter followed by two upper case
+     * letters or digits, which every acronym starts with.
+     */
+    public static final String CAPS = "[A-Z][A-Z0-9]{2}";
+    
+    /**
+     * the markers of all transformations, a marker's index is its id.  Replaced,
+     * never changed, when a transformation with a new marker is created.
+     *
+     * <p>Markers are global to the process and never removed: every Env and every
+     * Regex share them, so each distinct marker is added once however many engines
+     * or inline rule sets use it.  The list therefore only grows as far as the
+     * distinct markers of the built-in transformations and the trigger characters of
+     * loaded inline rules, and is rebuilt only when a new one is added.
+     */
+    private static class Markers {
+        
+        String[] markers;
+        int[][] byFirst = new int[128][];   // ids of the markers starting with an ASCII char
+        int[] others;                       // ids of the rest, tested with contains()
+        int caps = -1;                      // id of CAPS
+        
+        Markers(ArrayList<String> list) {
+            markers = list.toArray(new String[list.size()]);
+            int[] o = new int[markers.length];
+            int n = 0;
+            for( int id=0; id<markers.length; id++ ) {
+                char c = markers[id].charAt(0);
+                if( markers[id].equals(CAPS) ) {
+                    caps = id;
+                } else if( c < 128 ) {
+                    int[] ids = byFirst[c];
+                    ids = ids == null ? new int[1] : Arrays.copyOf(ids, ids.length+1);
+                    ids[ids.length-1] = id;
+                    byFirst[c] = ids;
+                } else {
+                    o[n++] = id;
+                }
+            }
+            others = Arrays.copyOf(o, n);
+        }
+    }
+    
+    private static final ArrayList<String> markerList = new ArrayList<String>();
+    private static volatile Markers markers = new Markers(markerList);
     
     private StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
     
+    // result of the last scan, see mayMatch()
+    private String scanned;
+    private Markers scannedWith;
+    private boolean[] found = new boolean[0];
+    
+    // text not scanned yet and the number of tests made on it
+    private String tested;
+    private int tests;
+    
     Regex() {}
     
+    /**
+     * @param marker marker of a transformation
+     * @return id of the marker, the same for every call with an equal marker, -1 for
+     * the empty marker which is in all text
+     */
+    static synchronized int markerId(String marker) {
+        if( marker.length() == 0 )
+            return -1;
+        for( int id=0; id<markerList.size(); id++ ) {
+            if( markerList.get(id).equals(marker) )
+                return id;
+        }
+        markerList.add(marker);
+        markers = new Markers(markerList);
+        return markerList.size() - 1;
+    }
+    
+    /**
+     * tests if text contains a marker, reusing the scan of the previous call when
+     * <I>text</I> is the same string.
+     * @param text text to test
+     * @param id marker id
+     * @return false if the text does not contain the marker
+     */
+    boolean mayMatch(String text, int id) {
+        if( id < 0 )
+            return true;
+        Markers m = markers;
+        if( text == scanned && m == scannedWith )
+            return found[id];
+        
+        // text often changes after a test or two, scan it only if it has not
+        if( text != tested ) {
+            tested = text;
+            tests = 0;
+        }
+        if( ++tests < SCAN_AFTER )
+            return contains(text, m.markers[id]);
+        scan(text, m);
+        return found[id];
+    }
+    
+    private void scan(String text, Markers m) {
+        
+        String[] list = m.markers;
+        if( found.length < list.length )
+            found = new boolean[list.length];
+        else
+            Arrays.fill(found, false);
+        
+        int len = text.length();
+        for( int i=0; i<len; i++ ) {
+            char c = text.charAt(i);
+            if( c >= 128 )
+                continue;
+            int[] ids = m.byFirst[c];
+            if( ids != null ) {
+                for( int id : ids ) {
+                    if( !found[id] && text.startsWith(list[id], i) )
+                        found[id] = true;
+                }
+            }
+            if( c >= 'A' && c <= 'Z' && m.caps != -1 && i+2 < len
+                    && isCapsChar(text.charAt(i+1)) && isCapsChar(text.charAt(i+2)) )
+                found[m.caps] = true;
+        }
+        for( int id : m.others )
+            found[id] = contains(text, list[id]);
+        
+        scanned = text;
+        scannedWith = m;
+    }
+    
+    /**
+     * forgets the text of the last scan and tests, called when a translation starts.
+     */
+    void clear() {
+        scanned = null;
+        scannedWith = null;
+        tested = null;
+        tests = 0;
+    }
+    
+    private static boolean isCapsChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+    
+    /**
+     * tests if text contains a marker without a Regex object.
+     * @param text text to test
+     * @param marker marker, may be {@link #CAPS}
+     * @return false if the text does not contain the marker
+     */
+    static boolean contains(String text, String marker) {
+        if( !marker.equals(CAPS) )
+            return text.indexOf(marker) != -1;
+        for( int i=0; i+2<text.length(); i++ ) {
+            char c = text.charAt(i);
+            if( c >= 'A' && c <= 'Z' && isCapsChar(text.charAt(i+1)) && isCapsChar(text.charAt(i+2)) )
+                return true;
+        }
+        return false;
+    }
+    
     /**
      * objects implementing this interface are used by
      * {@link Regex#applyTrans(Task,String,Pattern,Trans)}.
@@ -86,15 +255,16 @@ public class Regex {
      */
     protected static class Transformation {
         String marker;
+        int markerId;
         Pattern pattern;
         
         Transformation( String marker, String match ) {
-            pattern = Pattern.compile(match);
-            this.marker = marker;
+            this( marker, Pattern.compile(match) );
         }
         Transformation( String marker, Pattern pattern ) {
             this.pattern = pattern;
             this.marker = marker;
+            markerId = markerId(marker);
         }
     }
     
@@ -118,7 +288,20 @@ public class Regex {
         }
         
         public String replace(String text) {
-            if( -1 == text.indexOf(marker) )
+            if( !contains(text, marker) )
+                return text;
+            return pattern.matcher(text).replaceAll(replacement);
+        }
+        
+        /**
+         * same as {@link #replace(String)} but tests for the marker with the given
+         * Regex object.
+         * @param regex object which scanned the text for markers
+         * @param text input string to transform
+         * @return transformed string
+         */
+        public String replace(Regex regex, String text) {
+            if( !regex.mayMatch(text, markerId) )
                 return text;
             return pattern.matcher(text).replaceAll(replacement);
         }
@@ -151,9 +334,20 @@ public class Regex {
         }
         
         public String apply( Task task, String text ) {
-            if( -1 == text.indexOf(marker) )
+            return apply( task.getEnv().getRegex(), task, text );
+        }
+        
+        /**
+         * same as {@link #apply(Task,String)} but uses the given Regex object.
+         * @param regex object whose buffer accumulates the result
+         * @param task current task
+         * @param text input string to transform
+         * @return transformed string
+         */
+        public String apply( Regex regex, Task task, String text ) {
+            if( !regex.mayMatch(text, markerId) )
                 return text;
-            return task.getEnv().getRegex().applyTrans( task, text, pattern, trans );
+            return regex.applyTrans( task, text, pattern, trans );
         }
     }
     
@@ -9,7 +9,13 @@ package com.centeredwork.xilize;
 /**
  * Interface for informational, debug, warning, and error output.  When Xilize2 is 
  * used within another tool (for instance and editor like jEdit) a suitable
- * implementation of this interface must be provided.
+ * implementation of this interface must be provided.  When files are translated
+ * concurrently (see the <CODE>_Threads_</CODE> key) its methods are called from
+ * more than one thread.
+ *
+ * <p>When metrics are collected (see the <CODE>_Metrics_</CODE> key) a summary is
+ * passed to {@link #report(Object)} at the end of each run, unless the reporter
+ * implements {@link MetricsReporter}.
  * @see ReporterStd ReporterStd implements a console oriented interface suitable
  * for running Xilize from the command line.
  */
@@ -11,9 +11,10 @@ package com.centeredwork.xilize;
  * for running Xilize from the command line or within tools that capture the 
  * standard output streams.  Messages are formatted conventionally.  That is 
  * tools like NetBeans and jEdit's Console plugin will jump to file/line locations
- * on warnings and errors.
+ * on warnings and errors.  Methods are synchronized since files may be
+ * translated concurrently.
  */
-public class ReporterStd implements Reporter {
+public class ReporterStd implements MetricsReporter {
     
     private long startTime = System.currentTimeMillis();
     
@@ -25,32 +26,39 @@ public class ReporterStd implements Reporter {
 
     public long getLifeTime() { return System.currentTimeMillis() - startTime; }
     
-    public void debug(Object o) {
+    public synchronized void debug(Object o) {
         System.out.println("<debug> "+o);
     }
 
-    public void error( Object o ) {
+    public synchronized void error( Object o ) {
         errors++;
         System.out.println(o);
     } 
     
-    public void report(Object o) {
+    public synchronized void report(Object o) {
         System.out.println(o);
     }
 
-    public void warn(Object o) {
+    public synchronized void warn(Object o) {
         warnings++;
         System.out.println(o);
     }
 
-    public int getErrors() {
+    public synchronized int getErrors() {
         return errors;
     }
 
-    public int getWarnings() {
+    public synchronized int getWarnings() {
         return warnings;
     }
 
+    /**
+     * prints a summary table of the run's metrics.
+     */
+    public void metrics(Metrics metrics) {
+        report(metrics.summary(10));
+    }
+    
     public Reporter newInstance() {
         return new ReporterStd();
     }
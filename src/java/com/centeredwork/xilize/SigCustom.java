@@ -6,21 +6,32 @@
 
 package com.centeredwork.xilize;
 
+import bsh.BshMethod;
 import bsh.EvalError;
 import bsh.TargetError;
 import bsh.ParseException;
 import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Wrapper around custom signatures written in BeanShell.
+ *
+ * <p>A script which ends with a return statement is compiled once into a BeanShell
+ * method and invoked for each block, other scripts are evaluated each time because
+ * their result is the value of their last statement, which a method does not return.
+ * Each interpreter compiles the method in the namespace of each directory the
+ * signature is used in, see {@link BeanShell#compile(String,String)}.
  */
 public class SigCustom extends Signature {
     
+    private static final AtomicInteger ids = new AtomicInteger();
+    
     private Block codeBlock;
     private Task owner;
     private int lineNumber;
+    private String methodName;      // null if the script is not compiled
     
     public SigCustom(Task owner, Block codeBlock) throws XilizeException {
         
@@ -36,21 +47,27 @@ public class SigCustom extends Signature {
         }
         this.owner = owner;
         this.codeBlock = codeBlock;
+        if( endsWithReturn(codeBlock.linesAsStringTrim(1)) )
+            methodName = "xilSig_" + name + "_" + ids.incrementAndGet();
     }
     
     public String translate(Task task, Block block) {
         
-        BeanShell bsh = task.getBsh();
+        BeanShell bsh = task.getEnv().acquireBsh();
         String result = null;
         
         try {
             
+            bsh.enter(task);
             bsh.set("sig", this);
-            bsh.set("task", task);
             bsh.set("block", block);
             bsh.set("text", block.linesAsString());
             
-            result = bsh.exec(getOwner(), codeBlock.getLineNumber(), codeBlock.linesAsStringTrim(1));
+            String script = codeBlock.linesAsStringTrim(1);
+            BshMethod method = methodName == null ? null : bsh.compile(methodName, script);
+            result = method == null ?
+                bsh.exec(getOwner(), codeBlock.getLineNumber(), script) :
+                bsh.invoke(getOwner(), codeBlock.getLineNumber(), method);
             
         }  catch ( EvalError e ) {
             
@@ -60,10 +77,79 @@ public class SigCustom extends Signature {
             
             task.error(block.getLineNumber(), "custom signature translation failed " );
             
+        } finally {
+            task.getEnv().releaseBsh(bsh);
         }
         return result;
         
     }
+    
+    /**
+     * tests if the last top level statement of a script is a return, only then
+     * does the script give the same result as the body of a method.
+     * @param script BeanShell statements
+     * @return true if the script ends with <CODE>return ...;</CODE>
+     */
+    static boolean endsWithReturn(String script) {
+        
+        int depth = 0;
+        int start = -1;         // first significant character of the current statement
+        int last = -1;          // start of the last statement ended by ';'
+        boolean semicolon = false;
+        int n = script.length();
+        
+        for( int i=0; i<n; i++ ) {
+            char c = script.charAt(i);
+            if( Character.isWhitespace(c) )
+                continue;
+            if( c == '/' && i+1 < n && script.charAt(i+1) == '/' ) {
+                while( i < n && script.charAt(i) != '\n' )
+                    i++;
+                continue;
+            }
+            if( c == '/' && i+1 < n && script.charAt(i+1) == '*' ) {
+                int end = script.indexOf("*/", i+2);
+                if( end == -1 )
+                    return false;
+                i = end + 1;
+                continue;
+            }
+            if( start == -1 )
+                start = i;
+            semicolon = false;
+            switch( c ) {
+                case '"':
+                case '\'':
+                    for( i++; i < n && script.charAt(i) != c; i++ ) {
+                        if( script.charAt(i) == '\\' )
+                            i++;
+                    }
+                    break;
+                case '(': case '{': case '[':
+                    depth++;
+                    break;
+                case ')': case ']':
+                    depth--;
+                    break;
+                case '}':
+                    if( --depth == 0 ) {
+                        last = -1;
+                        start = -1;
+                    }
+                    break;
+                case ';':
+                    if( depth == 0 ) {
+                        last = start;
+                        start = -1;
+                        semicolon = true;
+                    }
+                    break;
+            }
+        }
+        
+        return semicolon && last != -1 && script.startsWith("return", last)
+            && ( last+6 == n || !Character.isJavaIdentifierPart(script.charAt(last+6)) );
+    }
 
     public int getLineNumber() {
         return lineNumber;
@@ -42,13 +42,13 @@ public class SigIf extends Signature {
         }
         
         String code = block.linesAsString();
-        BeanShell bsh = task.getBsh();
+        BeanShell bsh = task.getEnv().acquireBsh();
         String result = null;
         
         try {
-            bsh.set("task", task);
+            bsh.enter(task);
             result = bsh.exec(task, block.getLineNumber(), code);
-            
+        
             boolean isTrue = new Boolean(result);
             ArrayList<Block> kids = block.getChildren();
             Block last = kids.get(kids.size()-1);
@@ -64,11 +64,12 @@ public class SigIf extends Signature {
                 }
             }
         } catch ( EvalError e ) {
-            
+        
             throw new XilizeException(task, block.getLineNumber(), e.getMessage());
-            
+        
         } finally {
             bsh.set("task", null);
+            task.getEnv().releaseBsh(bsh);
         }
         
     }
@@ -18,7 +18,7 @@ import java.util.regex.Pattern;
 public class SigList extends Signature {
     
     private Task task;
-    private Stack<List> stack = new Stack<List>();
+    private Stack<List> stack;
     
     public SigList() {
         super("list");
@@ -34,12 +34,17 @@ public class SigList extends Signature {
         this.task = task;
         block.setWriteChildren(false);
         
+        // copies of a signature share its fields, each translation needs its own stack
+        stack = new Stack<List>();
+        
         List dummyHead = new List(0, '!', 0, null);
         stack.push( dummyHead );
         
-        for( String line : block.getLines() ) {
+        ArrayList<String> lines = block.getLines();
+        for( int i=0; i<lines.size(); i++ ) {
             
-            int lineNum = block.getLineNumber(line);
+            String line = lines.get(i);
+            int lineNum = block.getLineNumberAt(i);
             Matcher m = LIST_PATTERN.matcher(line);
             if( !m.matches() ) {
                 task.error(lineNum, "problem with list signature");
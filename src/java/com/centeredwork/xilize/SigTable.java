@@ -6,6 +6,8 @@
 
 package com.centeredwork.xilize;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -23,6 +25,10 @@ public class SigTable extends Signature {
     private ArrayList<StringBuilder> rows;
     private ArrayList<StringBuilder> footerRows;
     
+    // when streaming, body rows are written here as they are translated
+    private PrintWriter bodyOut;
+    private boolean bodyOpen;
+    
     SigTable() {
         super("table");
     }
@@ -32,6 +38,24 @@ public class SigTable extends Signature {
     }
         
     public String translate(Task task, Block block) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        translate(task, block, pw, false);
+        pw.flush();
+        return sw.toString();
+    }
+    
+    /**
+     * writes body rows as they are translated rather than collecting the whole
+     * table, unless the table has footer rows (header rows following body rows)
+     * which must be written before the body.
+     */
+    public void stream(Task task, Block block, PrintWriter pw) {
+        translate(task, block, pw, true);
+        pw.println();
+    }
+    
+    private void translate(Task task, Block block, PrintWriter buffer, boolean streaming) {
         
         headerRows = new ArrayList<StringBuilder>();
         rows = new ArrayList<StringBuilder>();
@@ -40,13 +64,14 @@ public class SigTable extends Signature {
         this.task = task;
         this.block = block;
         block.setWriteChildren(false);
-        StringBuilder buffer = new StringBuilder();
         
         // todo: handle rows as children in a more condensed form
         
         // todo: header/footer rows
         
-        buffer.append("<table"+tagAttributes()+">"+colSpec(block)+"\n");
+        buffer.print("<table"+tagAttributes()+">"+colSpec(block)+"\n");
+        bodyOut = streaming && !hasFooter(block) ? buffer : null;
+        bodyOpen = false;
         
         if( block.isParent() ) {
             
@@ -57,56 +82,100 @@ public class SigTable extends Signature {
                 } else {
                     // todo: add warning if multiline
                     // todo: add warning if mods on sig and at start of line
-                    row(child.getLine(0));
+                    row(child.getLine(0), block.getLineNumber(child.getLine(0)));
                 }
             }
             
         } else {
             
-            for( String line : block.getLines() ) {
-                row(line);
+            ArrayList<String> lines = block.getLines();
+            for( int i=0; i<lines.size(); i++ ) {
+                row(lines.get(i), block.getLineNumberAt(i));
             }
         }
         
+        if( bodyOpen ) {
+            // body rows have been written, see addRow()
+            buffer.print("</tbody>\n");
+        } else {
+            writeHead(buffer);
+            if( !rows.isEmpty() ) {
+                buffer.print("<tbody>\n");
+                for( StringBuilder s : rows ) {
+                    buffer.append(s);
+                }
+                buffer.print("</tbody>\n");
+            }
+        }
+        
+        buffer.print("</table>");
+        bodyOut = null;
+    }
+    
+    private void writeHead(PrintWriter buffer) {
+        
         if( !headerRows.isEmpty() ) {
-            buffer.append("<thead>\n");
+            buffer.print("<thead>\n");
             for( StringBuilder s : headerRows ) {
                 buffer.append(s);
             }
-            buffer.append("</thead>\n");
+            buffer.print("</thead>\n");
         }
         
         if( !footerRows.isEmpty() ) {
-            buffer.append("<tfoot>\n");
+            buffer.print("<tfoot>\n");
             for( StringBuilder s : footerRows ) {
                 buffer.append(s);
             }
-            buffer.append("</tfoot>\n");
+            buffer.print("</tfoot>\n");
         }
+    }
+    
+    /**
+     * tests for header rows following body rows without translating anything.
+     */
+    private boolean hasFooter(Block block) {
         
-        if( !rows.isEmpty() ) {
-            buffer.append("<tbody>\n");
-            for( StringBuilder s : rows ) {
-                buffer.append(s);
+        ArrayList<Modifiers> rowMods = new ArrayList<Modifiers>();
+        if( block.isParent() ) {
+            for( Block child : block.getChildren() ) {
+                if( child.isParent() ) {
+                    rowMods.add(child.getSignature().getMods());
+                } else {
+                    addRowMods(rowMods, child.getLine(0));
+                }
+            }
+        } else {
+            for( String line : block.getLines() ) {
+                addRowMods(rowMods, line);
             }
-            buffer.append("</tbody>\n");
         }
         
-        buffer.append("</table>");
-        
-        return buffer.toString();
+        boolean body = headerClosed;
+        for( Modifiers m : rowMods ) {
+            if( m.isHeader() && body )
+                return true;
+            body |= !m.isHeader();
+        }
+        return false;
+    }
+    
+    private void addRowMods(ArrayList<Modifiers> rowMods, String line) {
+        Matcher m = ROW_PATTERN.matcher(line);
+        if( m.matches() )
+            rowMods.add(new Modifiers.Sig(task, m.group(1)));
     }
     
     private static final String ROW_REGEX
             = "^ *("+Modifiers.REGEX_7+")(\\|.*)$";
     private static final Pattern ROW_PATTERN = Pattern.compile(ROW_REGEX);
     
-    private void row( String line ) {
+    private void row( String line, int lineNumber ) {
         
         StringBuilder buffer = new StringBuilder();
         Matcher m = ROW_PATTERN.matcher(line);
         if( !m.matches() ) {
-            task.warning(block.getLineNumber(line), "expeciting a table row");
+            task.warning(lineNumber, "expeciting a table row");
             return;
         }
         Modifiers mods = new Modifiers.Sig(task, m.group(1));
@@ -126,7 +195,17 @@ public class SigTable extends Signature {
                 headerRows.add(sb);
         } else {
             headerClosed = true;
-            rows.add(sb);
+            if( bodyOut == null ) {
+                rows.add(sb);
+            } else {
+                // the head is complete once the first body row is seen
+                if( !bodyOpen ) {
+                    writeHead(bodyOut);
+                    bodyOut.print("<tbody>\n");
+                    bodyOpen = true;
+                }
+                bodyOut.append(sb);
+            }
         }
     }
     
@@ -51,6 +51,8 @@ public class SigToc extends Signature implements CatalogListener {
         return null;
     }
     
+    public boolean translatesLast() { return true; }
+    
     public String translateLast(Task task, Block block) {
         
         if( entries.size() == 0 ) {
@@ -1,8 +1,13 @@
 package com.centeredwork.xilize;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -187,6 +192,30 @@ public class Signature implements Cloneable {
         return null;
     }
     
+    /**
+     * flags signatures whose blocks are translated by translateLast() once every
+     * other block is translated, "toc." for instance.  When output is streamed
+     * (key <CODE>_StreamOutput_</CODE>) such blocks are held back and their output
+     * is put in place after the rest of the file has been written.
+     * @return false unless overriden in subclass
+     */
+    public boolean translatesLast() { return false; }
+    
+    /**
+     * translates a top level block and writes it to the output.  Called in place
+     * of translate() and {@link Block#write(PrintWriter)} when output is streamed
+     * (key <CODE>_StreamOutput_</CODE>) so a block's output need not be held in
+     * memory once written.  Signatures whose translations can be large override
+     * this to write as they translate.
+     * @param task current task
+     * @param block block to translate
+     * @param pw the output stream
+     */
+    public void stream(Task task, Block block, PrintWriter pw) {
+        block.setTranslation(translate(task, block));
+        block.write(pw);
+    }
+    
     public static class Simple extends Signature {
         String startTags;
         String endTags;
@@ -389,15 +418,16 @@ public class Signature implements Cloneable {
                 }
                 
             } else {
-                for( String s : block.getLines() ) {
-                    String[] kv = s.split("\\s+", 2);
+                ArrayList<String> lines = block.getLines();
+                for( int i=0; i<lines.size(); i++ ) {
+                    String[] kv = lines.get(i).split("\\s+", 2);
                     if( kv.length == 2 ) {
                         if( append )
                             task.defineAppend(kv[0], kv[1]);
                         else
                             task.define(kv[0], kv[1]);
                     } else {
-                        task.warning(block.getLineNumber(s), "key and value required");
+                        task.warning(block.getLineNumberAt(i), "key and value required");
                     }
                 }
             }
@@ -747,9 +777,7 @@ public class Signature implements Cloneable {
             }
             public String translate(Task task, Block block) {
                 block.setWriteChildren(false);
-                return "<!-- " +
-                        task.getEnv().getInline().translateKMU(task, block.wrapLines(0))
-                        + " -->";
+                return "<!-- " + task.markupKMU(block.wrapLines(0)) + " -->";
             }
         });
         
@@ -936,26 +964,47 @@ public class Signature implements Cloneable {
         
         task.addSig(new Signature("includeRaw") {
             public String translate(Task task, Block block) {
+                StringWriter sw = new StringWriter();
+                PrintWriter pw = new PrintWriter(sw);
+                include(task, block, pw);
+                pw.flush();
+                return sw.toString();
+            }
+            // copies the files to the output rather than reading them into a string
+            public void stream(Task task, Block block, PrintWriter pw) {
+                include(task, block, pw);
+                pw.println();
+            }
+            private void include(Task task, Block block, PrintWriter pw) {
                 if( !(task instanceof TaskFile )) {
                     task.warning(block.getLineNumber(), "file task required");
-                    return "";
+                    return;
                 }
                 String[] fnames = block.linesAsStringTrim().split("\\s+");
                 if( fnames == null || fnames[0].equals("") ) {
                     task.warning(block.getLineNumber(), "nothing to include");
-                    return "";
+                    return;
                 }
-                StringBuilder sb = new StringBuilder();
                 for( String filename : fnames ) {
                     File f = Files.localFile( filename, task.getParent().getPath());
+                    ((TaskFile)task).addDependency(f);
                     try {
-                        sb.append(Files.read(f,0));
+                        // lines are joined without line breaks, as Files.read(f,0) does
+                        BufferedReader reader = new BufferedReader(
+                                new InputStreamReader(new FileInputStream(f), Files.charset(task)));
+                        try {
+                            String line;
+                            while( (line = reader.readLine()) != null ) {
+                                pw.print(line);
+                            }
+                        } finally {
+                            reader.close();
+                        }
                     } catch (IOException ex) {
                         task.error(block.getLineNumber(), "file read failed");
                         ex.printStackTrace();
                     }
                 }
-                return sb.toString();
             }
         });
         
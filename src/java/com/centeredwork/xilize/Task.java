@@ -11,8 +11,8 @@ import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.regex.Pattern;
 
 /**
  * Much like a stack frame on an execution stack, a Task object contains registries
@@ -21,6 +21,8 @@ import java.util.regex.Pattern;
  * the registries do not.  Thus, modifications by a subtask do not affect
  * ancestor tasks.
  *
+ * Lookups are resolved once and remembered by each task, see {@link Resolved}.
+ *
  * Task objects also keep a reference to the global environment and provide convenience
  * methods to access it.
  *
@@ -39,10 +41,45 @@ abstract public class Task {
     protected Env env;
     
     // local symbols
-    protected HashMap<String,String> defReg = new HashMap<String,String>();
+    protected HashMap<String,String> defReg = new HashMap<String,String>();  // keys other than built-in
+    protected String[] keyReg = new String[Key.COUNT];   // built-in keys by ordinal, null if not defined here
+    protected boolean[] keyTrue = new boolean[Key.COUNT]; // keyReg values parsed by isTrue()
     protected HashMap<String,String> abbrevReg = new HashMap<String,String>();
     protected HashMap<String,Signature> sigReg = new HashMap<String,Signature>();;
     
+    // lookups resolved up the chain of tasks
+    protected Resolved resolved = new Resolved();
+    
+    /**
+     * Values, signatures and URLs a task has looked up, so a key is resolved with one
+     * probe however deep the task is.  Cleared when its own task's registries change.
+     * A change to registries a descendant has searched starts a new generation
+     * in Env, which clears every Resolved on its next use; child definitions thus
+     * still never reach ancestors, and ancestor definitions are seen at once.
+     *
+     * <p>Shared by include files with the task they are included in, as are the
+     * registries.  Used only by the thread translating the task.
+     */
+    static class Resolved {
+        
+        private int generation;
+        private volatile boolean inherited;   // a descendant searched these registries
+        private String[] keys = new String[Key.COUNT];
+        private boolean[] keysTrue = new boolean[Key.COUNT];
+        private HashMap<String,String> values = new HashMap<String,String>();
+        private HashMap<String,Signature> sigs = new HashMap<String,Signature>();
+        private HashMap<String,String> urls = new HashMap<String,String>();
+        int lookups;        // for Metrics
+        int misses;         // lookups which searched the registries
+        
+        void clear() {
+            Arrays.fill(keys, null);
+            values.clear();
+            sigs.clear();
+            urls.clear();
+        }
+    }
+    
     /**
      * Creates a new Task instance.
      * @param parent parent task
@@ -76,8 +113,15 @@ abstract public class Task {
         return env.isHalted();
     }
     public BeanShell getBsh() { return env.getBsh(); }
+    
+    /**
+     * @return the BeanShell scope scripts run in for this task, that of its directory
+     */
+    BeanShell.Scope getBshScope() {
+        return parent == null ? env.getBshScope() : parent.getBshScope();
+    }
     public boolean isNatural() {
-        return isValueTrue(Key._Natural_.name());
+        return isValueTrue(Key._Natural_);
     }
     
     public String getDescription() {
@@ -94,10 +138,14 @@ abstract public class Task {
     
     // define, enum Key versions
     public boolean isDefined( Key key ) {
-        return isDefined(key.name());
+        return !value(key).equals("");
     }
     public String value( Key key ) {
-        return value( key.name() );
+        Resolved r = resolved();
+        int i = key.ordinal();
+        if( r.keys[i] == null )
+            resolve(r, i);
+        return r.keys[i];
     }
     public void define( Key key, String value) {
         define( key.name(), value);
@@ -106,7 +154,11 @@ abstract public class Task {
         defineAppend(key.name(), value);
     }
     public boolean isValueTrue( Key key ) {
-        return isValueTrue(key.name());
+        Resolved r = resolved();
+        int i = key.ordinal();
+        if( r.keys[i] == null )
+            resolve(r, i);
+        return r.keysTrue[i];
     }
     public void undef( Key key ) {
         undef(key.name());
@@ -115,34 +167,132 @@ abstract public class Task {
         return getSignature(key.name());
     }
     
+    // lookups
+    
+    /**
+     * @return lookups remembered by this task, emptied first if an ancestor's registries
+     * changed since they were made
+     */
+    private Resolved resolved() {
+        int generation = env==null? 0: env.generation();   // no env while the master task is created
+        if( resolved.generation != generation ) {
+            resolved.clear();
+            resolved.generation = generation;
+        }
+        resolved.lookups++;
+        return resolved;
+    }
+    
+    /**
+     * resolves a built-in key, the value and whether it is true are copied from the
+     * task defining it.
+     * @param r lookups of this task
+     * @param i key ordinal
+     */
+    private void resolve(Resolved r, int i) {
+        // an "undef'd" key has the value ""
+        r.misses++;
+        r.keys[i] = "";
+        r.keysTrue[i] = false;
+        for( Task t = this; t != null; t = above(t) ) {
+            if( t.keyReg[i] != null ) {
+                r.keys[i] = t.keyReg[i];
+                r.keysTrue[i] = t.keyTrue[i];
+                break;
+            }
+        }
+    }
+    
+    /**
+     * makes this task use the registries and lookups of another, as an include file
+     * does with the task it is included in.  Must be called before this task looks
+     * anything up, else the other task's lookups are flagged as searched by a
+     * descendant and every change to them starts a new generation.
+     * @param t task to share with
+     */
+    void share(Task t) {
+        defReg = t.defReg;
+        keyReg = t.keyReg;
+        keyTrue = t.keyTrue;
+        abbrevReg = t.abbrevReg;
+        sigReg = t.sigReg;
+        resolved = t.resolved;
+    }
+    
+    /**
+     * called whenever this task's registries change.
+     */
+    void changed() {
+        resolved.clear();
+        if( resolved.inherited )
+            env.nextGeneration();
+    }
+    
+    /**
+     * next task up the chain whose registries are searched, include files share
+     * their registries with the task they are included in.
+     * @param t a task in this task's chain
+     * @return t's parent, flagged as searched by a descendant, or null
+     */
+    private Task above(Task t) {
+        Task p = t.parent;
+        if( p != null && p.resolved != resolved && !p.resolved.inherited )
+            p.resolved.inherited = true;
+        return p;
+    }
+    
     // define, string versions
     public boolean isDefined( String key ) {
-        if( defReg.containsKey(key)  ) {
-            return defReg.get(key).equals("") ? false : true;
-        }
-        return parent==null? false: parent.isDefined(key);
+        return !value(key).equals("");
     }
     protected boolean _isDefined( String key ) {
+        Key k = Key.forName(key);
+        if( k != null )
+            return _isDefined(k);
         return defReg.containsKey(key) && !defReg.get(key).equals("") ? true : false;
     }
+    protected boolean _isDefined( Key key ) {
+        return keyReg[key.ordinal()] != null && !keyReg[key.ordinal()].equals("");
+    }
     protected boolean parentHasDefined( Key key ) {
-        return parent==null? false: parent._isDefined(key.name());
+        return parent==null? false: parent._isDefined(key);
     }
     public String value( String key ) {
-        if( defReg.containsKey(key) && defReg.get(key).equals("") ) {
-            // then the key has been "undef'd"
-            return "";
+        Key k = Key.forName(key);
+        if( k != null )
+            return value(k);
+        Resolved r = resolved();
+        String value = r.values.get(key);
+        if( value == null ) {
+            // an "undef'd" key has the value ""
+            r.misses++;
+            value = "";
+            for( Task t = this; t != null; t = above(t) ) {
+                if( t.defReg.containsKey(key) ) {
+                    value = t.defReg.get(key);
+                    break;
+                }
+            }
+            r.values.put(key, value);
         }
-        if( !defReg.containsKey(key) )
-            return parent==null? "": parent.value(key);
-        return defReg.get(key);
+        return value;
     }
     public void define( String key, String value) {
         if( value.startsWith("&{literal:") && value.endsWith("}") ) {
             value = value.substring("&{literal:".length(), value.length()-1);
         }
         value = markupKM(value);
-        defReg.put(key, value);
+        put(key, value);
+        changed();
+    }
+    
+    private void put( String key, String value ) {
+        Key k = Key.forName(key);
+        if( k != null ) {
+            keyReg[k.ordinal()] = value;
+            keyTrue[k.ordinal()] = value != null && isTrue(value);
+        } else
+            defReg.put(key, value);
     }
     
     public void undef( String key ) {
@@ -165,14 +315,41 @@ abstract public class Task {
     public void define(HashMap<String,String> definitions) {
         if( definitions == null)
             return;
-        defReg.putAll(definitions);
+        for( Map.Entry<String,String> e : definitions.entrySet() ) {
+            put(e.getKey(), e.getValue());
+        }
+        changed();
     }
     
-    private static final Pattern IS_TRUE_PATTERN = Pattern.compile("(?i)true|yes|1|on");
-    
     public boolean isValueTrue( String key ) {
-        String s = value(key);
-        return IS_TRUE_PATTERN.matcher(s).matches();
+        Key k = Key.forName(key);
+        if( k != null )
+            return isValueTrue(k);
+        return isTrue(value(key));
+    }
+    
+    /**
+     * tests a value for truth, case is ignored.
+     * @param s value
+     * @return true if <I>s</I> is "true", "yes", "1", or "on"
+     */
+    static boolean isTrue( String s ) {
+        switch( s.length() ) {
+            case 1:  return s.charAt(0) == '1';
+            case 2:  return is(s, "on");
+            case 3:  return is(s, "yes");
+            case 4:  return is(s, "true");
+            default: return false;
+        }
+    }
+    
+    // compares ignoring the case of ASCII letters only, as the pattern "(?i)..." does
+    private static boolean is( String s, String lowerCase ) {
+        for( int i=0; i<s.length(); i++ ) {
+            if( (s.charAt(i) | 0x20) != lowerCase.charAt(i) )
+                return false;
+        }
+        return true;
     }
     
     // signature
@@ -193,6 +370,7 @@ abstract public class Task {
             }
         }
         sigReg.put(sig.getName(), sig);
+        changed();
     }
     
     /**
@@ -222,42 +400,96 @@ abstract public class Task {
      * @see Task#getSignature(String)
      */
     Signature _getSignature( String name ) {
-        if( sigReg.containsKey(name) )
-            return sigReg.get(name);
-        return parent==null? null: parent._getSignature(name);
+        Resolved r = resolved();
+        Signature sig = r.sigs.get(name);
+        if( sig == null && !r.sigs.containsKey(name) ) {
+            r.misses++;
+            for( Task t = this; t != null; t = above(t) ) {
+                if( t.sigReg.containsKey(name) ) {
+                    sig = t.sigReg.get(name);
+                    break;
+                }
+            }
+            r.sigs.put(name, sig);
+        }
+        return sig;
     }
     
     // inline markup translation
     public String markup(String s) {
-        return env.getInline().translate(this,s);
+        InlineMarkup inline = env.acquireInline();
+        try {
+            return inline.translate(this,s);
+        } finally {
+            env.releaseInline(inline);
+        }
     }
     public String markupKM(String s) {
-        return env.getInline().translateKM(this, s);
+        InlineMarkup inline = env.acquireInline();
+        try {
+            return inline.translateKM(this, s);
+        } finally {
+            env.releaseInline(inline);
+        }
+    }
+    public String markupKMU(String s) {
+        InlineMarkup inline = env.acquireInline();
+        try {
+            return inline.translateKMU(this, s);
+        } finally {
+            env.releaseInline(inline);
+        }
     }
     public String markup(Block block) {
-        return env.getInline().translate(block);
+        InlineMarkup inline = env.acquireInline();
+        try {
+            return inline.translate(block);
+        } finally {
+            env.releaseInline(inline);
+        }
     }
     public String markupKeepEOL(Block block) {
-        return env.getInline().translateKeepNL(block);
+        InlineMarkup inline = env.acquireInline();
+        try {
+            return inline.translateKeepNL(block);
+        } finally {
+            env.releaseInline(inline);
+        }
     }
     public String markupKeepEOL(int wrap, Block block) {
-        return env.getInline().translateKeepNL(block, block.wrapLines(wrap));
+        InlineMarkup inline = env.acquireInline();
+        try {
+            return inline.translateKeepNL(block, block.wrapLines(wrap));
+        } finally {
+            env.releaseInline(inline);
+        }
     }
     public String markupU(Block block) {
-        return env.getInline().replaceUnkindChar(block.linesAsString());
+        return InlineMarkup.replaceUnkindChar(block.linesAsString());
     }
     public String markupU(String s) {
-        return env.getInline().replaceUnkindChar(s);
+        return InlineMarkup.replaceUnkindChar(s);
     }
     
     // abbreviations
     public void addAbbrev( String abbrev, String url ){
         abbrevReg.put(abbrev, url);
+        changed();
     }
     public String getUrl( String abbrev ) {
-        if( abbrevReg.containsKey(abbrev) )
-            return abbrevReg.get(abbrev);
-        return parent==null? null: parent.getUrl(abbrev);
+        Resolved r = resolved();
+        String url = r.urls.get(abbrev);
+        if( url == null && !r.urls.containsKey(abbrev) ) {
+            r.misses++;
+            for( Task t = this; t != null; t = above(t) ) {
+                if( t.abbrevReg.containsKey(abbrev) ) {
+                    url = t.abbrevReg.get(abbrev);
+                    break;
+                }
+            }
+            r.urls.put(abbrev, url);
+        }
+        return url;
     }
     
     // catalog
@@ -286,7 +518,7 @@ abstract public class Task {
     // report
     // todo:  add task info to messages
     private void _report( String msg ) {
-        if( isValueTrue("_Silent_") )
+        if( isValueTrue(Key._Silent_) )
             return;
         env.getReporter().report(msg);
     }
@@ -295,7 +527,7 @@ abstract public class Task {
     }
     
     private void _warning( String msg ) {
-        if( isValueTrue("_NoWarn_") )
+        if( isValueTrue(Key._NoWarn_) )
             return;
         env.getReporter().warn(msg);
     }
@@ -307,7 +539,7 @@ abstract public class Task {
     }
     
     private void _debug( String s ) {
-        if( isValueTrue("_Debug_") )
+        if( isValueTrue(Key._Debug_) )
             env.getReporter().debug(s);
     }
     public void debug( String s ) {
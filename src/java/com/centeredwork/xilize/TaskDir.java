@@ -10,6 +10,12 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 /**
@@ -32,6 +38,8 @@ public class TaskDir extends TaskFile {
     private ArrayList<TaskDir> subdirs;
     private ArrayList<String> ordering;
     private int depth;
+    private BeanShell.Scope bshScope;   // null until the directory's BeanShell files are found
+    private Files.Listing listing;      // null until the directory is listed
     
     /**
      * creates and instance of TaskDir for a particular directory.
@@ -39,13 +47,26 @@ public class TaskDir extends TaskFile {
      * @param dir the directory associated with this task
      */
     public TaskDir(Task parent, File dir) {
+        this(parent, dir, null);
+    }
+    
+    /**
+     * creates an instance of TaskDir for a directory which has been listed.
+     * @param parent the parent task
+     * @param dir the directory associated with this task
+     * @param listing the directory's entries, null to list them when needed
+     */
+    TaskDir(Task parent, File dir, Files.Listing listing) {
         
         super(parent,dir);
+        this.listing = listing;
         
         if( parent instanceof Xilize2 || getLocalFile("root.xilconfig") != null )
             root = true;
         
         report(file.toString());
+        if( listing().getError() != null )
+            error("cannot list directory", listing().getError());
         
         if( isNatural() ) naturalInit();
         
@@ -97,10 +118,30 @@ public class TaskDir extends TaskFile {
         // load any beanshell files
         
         // todo: control with a key definition that may be placed in the xildir.config file
-        ArrayList<File> bshFiles = Files.listFiles(file, ".*\\.bsh$");
+        ArrayList<File> bshFiles = listing().files(".*\\.bsh$");
         for( File f : bshFiles ) {
-            getBsh().source(this, f);
+            addDependency(f);
         }        
+        if( bshFiles.isEmpty() ) {
+            bshScope = super.getBshScope();
+        } else {
+            bshScope = new BeanShell.Scope(super.getBshScope(), file.getPath(), bshFiles);
+            BeanShell bsh = getEnv().acquireBsh();
+            try {
+                bsh.source(this, bshScope);
+            } finally {
+                getEnv().releaseBsh(bsh);
+            }
+        }
+        
+        // files added or removed here may change the translation of every file below
+        addDependency(Manifest.listingKey(file), Manifest.listingStamp(listing()));
+        
+        // a subdirectory's config may set the _DirLabel_ shown in _SubDirList_
+        for( File d : listing().dirs(".*") ) {
+            File f = new File(d, "dir.xilconfig");
+            addDependency(f.getAbsolutePath(), Manifest.stamp(f));
+        }
     }
     
     private boolean root;
@@ -130,7 +171,7 @@ public class TaskDir extends TaskFile {
         natIncDef(Key.headerinc, "header.xilinc");
         natIncDef(Key.footerinc, "footer.xilinc");
         
-        ArrayList<File> cssFiles = Files.listFiles(file, ".*\\.css");
+        ArrayList<File> cssFiles = listing().files(".*\\.css");
         File defcss = new File( file, "default.css");
         if( cssFiles.contains(defcss) ) {
             define(Key.css, "default.css");
@@ -160,78 +201,183 @@ public class TaskDir extends TaskFile {
     
     public void xilize() throws XilizeException {
         
+        int threads = threadCount();
+        if( threads > 1 ) {
+            xilizeConcurrently(threads);
+            return;
+        }
+        
         // xilize files in this directory and its subdirectories
         
         if( getSources() != null ) {
+            preparePages();
+            for( TaskFile tf : sources ) {
+                tf.xilize();
+            }
+        }
+        
+        // xilize subdirectories
+        if( getSubdirs() != null ) {
+            for( TaskDir td : subdirs ) {
+                td.xilize();
+            }
+        }
+        
+    }
+    
+    /**
+     * establishes the page order of this directory and defines the page number,
+     * page count, and previous/next keys for each file task.  Done for all files
+     * before any is translated so files may be translated in any order.
+     */
+    private void preparePages() {
+        
+        // establish page order
+        
+        File pageOrder = getLocalFile("page.xilconfig");
+        if( pageOrder == null ) {
             
-            // establish page order            
+            // use a sorted list of source files
+            ArrayList<File> files = listing().files(".*\\.xil$");
+            ordering = new ArrayList<String>(files.size());
+            for( File f : files )
+                getOrdering().add(f.getName());
             
-            File pageOrder = getLocalFile("page.xilconfig");
-            if( pageOrder == null ) {
-                
-                // use a sorted list of source files
-                ArrayList<File> files = Files.listFiles(file,".*\\.xil$");
-                ordering = new ArrayList<String>(files.size());
-                for( File f : files )
-                    getOrdering().add(f.getName());
-                
-            } else {
-                
-                // use the page.xil file
-                try {
-                    String[] sa = Files.read(pageOrder).replaceAll("[ \t]+", "").split("\\s+");
-                    ordering =  new ArrayList<String>(Arrays.asList(sa));
-                } catch (IOException ex) {
-                    error("reading page order file", ex);
-                }
+        } else {
+            
+            // use the page.xil file
+            addDependency(pageOrder);
+            try {
+                String[] sa = Files.read(pageOrder).replaceAll("[ \t]+", "").split("\\s+");
+                ordering =  new ArrayList<String>(Arrays.asList(sa));
+            } catch (IOException ex) {
+                error("reading page order file", ex);
             }
+        }
+        
+        String outext = value(Key._OutputExtension_);
+        
+        // a file not in the ordering sees the number of the last file before it which
+        // is, or if there is none the number the directory inherited, stored as is
+        String pageNumber = null;
+        HashMap<String,String> inherited = new HashMap<String,String>();
+        inherited.put(Key._PageNumber_.name(), value(Key._PageNumber_));
+        
+        for( TaskFile tf : sources ) {
             
-            for( TaskFile tf : sources ) {
-                
-                // set up prev and next keys
+            // set up prev and next keys
+            
+            String xilfile = tf.file.getName();
+            int i = getOrdering().indexOf(xilfile);
+            
+            if( i != -1) {
                 
-                String outext = value(Key._OutputExtension_);
-                String xilfile = tf.file.getName();
-                int i = getOrdering().indexOf(xilfile);
-                define(Key._PagesTotal_, String.valueOf(getOrdering().size()));
+                pageNumber = String.valueOf(i+1);
                 
-                if( i != -1) {
-                    
-                    define(Key._PageNumber_, String.valueOf(i+1));
-                    
-                    if( getOrdering().size() == 1) {
-                        ;  // there is no previous or next page
-                    } else if( getOrdering().size() == 2) {
-                        if( i==0 ) {
-                            tf.define(Key._Prev_, in2out(getOrdering().get(1), outext));
-                            tf.define(Key._Next_, in2out(getOrdering().get(1), outext));
-                        } else {
-                            tf.define(Key._Prev_, in2out(getOrdering().get(0), outext));
-                            tf.define(Key._Next_, in2out(getOrdering().get(0), outext));
-                        }
-                    } else if( i == 0 ) {
-                        tf.define(Key._Prev_, in2out(getOrdering().get(getOrdering().size() -1), outext));
+                if( getOrdering().size() == 1) {
+                    ;  // there is no previous or next page
+                } else if( getOrdering().size() == 2) {
+                    if( i==0 ) {
+                        tf.define(Key._Prev_, in2out(getOrdering().get(1), outext));
                         tf.define(Key._Next_, in2out(getOrdering().get(1), outext));
-                    } else if( i== getOrdering().size() -1 ) {
-                        tf.define(Key._Prev_, in2out(getOrdering().get(getOrdering().size() -2), outext));
-                        tf.define(Key._Next_, in2out(getOrdering().get(0), outext));
                     } else {
-                        tf.define(Key._Prev_, in2out(getOrdering().get(i-1), outext));
-                        tf.define(Key._Next_, in2out(getOrdering().get(i+1), outext));
+                        tf.define(Key._Prev_, in2out(getOrdering().get(0), outext));
+                        tf.define(Key._Next_, in2out(getOrdering().get(0), outext));
                     }
+                } else if( i == 0 ) {
+                    tf.define(Key._Prev_, in2out(getOrdering().get(getOrdering().size() -1), outext));
+                    tf.define(Key._Next_, in2out(getOrdering().get(1), outext));
+                } else if( i== getOrdering().size() -1 ) {
+                    tf.define(Key._Prev_, in2out(getOrdering().get(getOrdering().size() -2), outext));
+                    tf.define(Key._Next_, in2out(getOrdering().get(0), outext));
+                } else {
+                    tf.define(Key._Prev_, in2out(getOrdering().get(i-1), outext));
+                    tf.define(Key._Next_, in2out(getOrdering().get(i+1), outext));
                 }
-                
-                tf.xilize();
             }
+            if( pageNumber != null )
+                tf.define(Key._PageNumber_, pageNumber);
+            else
+                tf.define(inherited);
         }
         
-        // xilize subdirectories
+        // subdirectories inherit these as they did when defined file by file
+        if( !sources.isEmpty() )
+            define(Key._PagesTotal_, String.valueOf(getOrdering().size()));
+        if( pageNumber != null )
+            define(Key._PageNumber_, pageNumber);
+    }
+    
+    /**
+     * number of threads to translate with, controlled by the <CODE>_Threads_</CODE> and
+     * <CODE>_SingleThread_</CODE> keys.
+     */
+    private int threadCount() {
+        if( isValueTrue(Key._SingleThread_) || !isDefined(Key._Threads_) )
+            return 1;
+        try {
+            int n = Integer.parseInt(value(Key._Threads_).trim());
+            return n > 0 ? n : Runtime.getRuntime().availableProcessors();
+        } catch (NumberFormatException ex) {
+            warning("_Threads_ key is set to something that is not a number, using one thread");
+            return 1;
+        }
+    }
+    
+    private void collectPages(ArrayList<TaskFile> pages) {
+        if( getSources() != null ) {
+            preparePages();
+            pages.addAll(sources);
+        }
         if( getSubdirs() != null ) {
             for( TaskDir td : subdirs ) {
-                td.xilize();
+                td.collectPages(pages);
             }
         }
-        
+    }
+    
+    /**
+     * translates the files of this directory and its subdirectories on a pool
+     * of threads.  Page definitions for every directory are set up first, in
+     * directory order, so the output is identical to a serial run.
+     */
+    private void xilizeConcurrently(int threads) throws XilizeException {
+        
+        ArrayList<TaskFile> pages = new ArrayList<TaskFile>();
+        collectPages(pages);
+        
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<Object>> results = new ArrayList<Future<Object>>(pages.size());
+        try {
+            for( final TaskFile tf : pages ) {
+                results.add(pool.submit(new Callable<Object>() {
+                    public Object call() throws XilizeException {
+                        tf.xilize();
+                        return null;
+                    }
+                }));
+            }
+            
+            // wait in page order so the exception thrown is the one a serial run would stop at
+            for( Future<Object> result : results ) {
+                try {
+                    result.get();
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if( cause instanceof XilizeException )
+                        throw (XilizeException) cause;
+                    if( cause instanceof RuntimeException )
+                        throw (RuntimeException) cause;
+                    if( cause instanceof Error )
+                        throw (Error) cause;
+                    throw new XilizeException(Xilize2.ExitCode.Fatal, this, cause);
+                }
+            }
+        } catch (InterruptedException ex) {
+            throw new XilizeException(Xilize2.ExitCode.UserHalt, this, "translation interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
     }
     
     private static Pattern outfilePattern = Pattern.compile("^(.*\\.)xil$");
@@ -243,30 +389,89 @@ public class TaskDir extends TaskFile {
     /**
      * creates file and subdirectory tasks for children of this directory.
      *
+     * <p>Tasks are created depth first, in the same order whether or not more than
+     * one thread is used.  With more than one, see {@link #threadCount()}, the
+     * directories whose tasks are created next are listed ahead on a pool of threads,
+     * a level at a time.
+     *
      * @param curDepth     current curDepth
      * @param maxDepth  max curDepth to scan: TaskDir.ALL means unlimited, 0 means just this dir
      * @param dirList   path to first directory to scan for files and subdirectories
      */
     void makeTree( int curDepth, int maxDepth, String[] dirList ) {
         
+        Lister lister = new Lister(threadCount());
+        try {
+            makeTree(curDepth, maxDepth, dirList, lister);
+        } finally {
+            lister.shutdown();
+        }
+    }
+    
+    private void makeTree( int curDepth, int maxDepth, String[] dirList, Lister lister ) {
+        
         depth = curDepth;
         
         if( dirList == null || curDepth >= dirList.length ) {
-            ArrayList<File> files = Files.listFiles(file,".*\\.xil$");
+            ArrayList<File> files = listing().files(".*\\.xil$");
             for( File f : files ) {
                 getSources().add( new TaskFile(this, f));
             }
         }
         
+        ArrayList<File> dirs = subdirsToScan(curDepth, dirList);
+        if( dirs.size() == 0 )
+            return;
+        
+        // create sub directory tasks
+        
+        lister.listAhead(dirs);
+        subdirs = new ArrayList<TaskDir>(dirs.size());
+
+        for( File f : dirs ) {
+            getSubdirs().add(new TaskDir( this, f, lister.list(f) ));
+        }
+        
+        // create define sub dir lists
+        
+        StringBuilder sb = new StringBuilder();
+        StringBuilder sbl = new StringBuilder();
+        String sep = value(Key._SubDirListSeparator_);
+        for( TaskDir td : subdirs ) {
+            sb.append(td.value(Key._DirLabel_) + sep);
+            sbl.append("[\""+td.value(Key._DirLabel_)+"\":"
+                    +td.value(Key._DirName_)+"/index.html]" + sep);
+        }
+        define(Key._SubDirList_, sb.toString().trim());
+        define(Key._SubDirListLinked_, sbl.substring(0,sbl.length()-sep.length()+1));
+        
+        if( !(maxDepth == 0 || (maxDepth > 0 && curDepth >= maxDepth)) ) {
+            // the next level of every subdirectory is listed while the first is expanded
+            for( TaskDir td : subdirs ) {
+                lister.listAhead(td.subdirsToScan(curDepth+1, dirList));
+            }
+            for( TaskDir td : subdirs ) {
+                td.makeTree(curDepth+1, maxDepth, dirList, lister);
+            }
+        }
+                
+     }
+    
+    /**
+     * @return subdirectories of this directory to create tasks for, filtered by
+     * <I>dirList</I> and the <CODE>_DirInclude_</CODE> and <CODE>_DirExclude_</CODE> keys
+     */
+    private ArrayList<File> subdirsToScan( int curDepth, String[] dirList ) {
+        
        // get subdirectories
         ArrayList<File> dirs = null;
         if( dirList == null || curDepth >= dirList.length ) {
-            dirs  = Files.listDirs(file, ".*");
+            dirs  = listing().dirs(".*");
         } else {
-            dirs  = Files.listDirs(file, Pattern.quote(dirList[curDepth]));
+            dirs  = listing().dirs(Pattern.quote(dirList[curDepth]));
         }
         if( dirs.size() == 0 )
-            return;
+            return dirs;
         
         // filter subdirectories
         
@@ -294,43 +499,89 @@ public class TaskDir extends TaskFile {
                     i++;
             }
         }
+        return dirs;
+    }
+    
+    /**
+     * lists directories for makeTree(), ahead of time on a pool of threads when
+     * there is more than one thread.
+     */
+    private static class Lister {
         
-        // create sub directory tasks
+        private ExecutorService pool;   // null when listing on the calling thread
+        private HashMap<File,Future<Files.Listing>> ahead = new HashMap<File,Future<Files.Listing>>();
         
-        subdirs = new ArrayList<TaskDir>(dirs.size());
-
-        for( File f : dirs ) {
-            getSubdirs().add(new TaskDir( this, f ));
+        Lister(int threads) {
+            if( threads > 1 )
+                pool = Executors.newFixedThreadPool(threads);
         }
         
-        // create define sub dir lists
-        
-        StringBuilder sb = new StringBuilder();
-        StringBuilder sbl = new StringBuilder();
-        String sep = value(Key._SubDirListSeparator_);
-        for( TaskDir td : subdirs ) {
-            sb.append(td.value(Key._DirLabel_) + sep);
-            sbl.append("[\""+td.value(Key._DirLabel_)+"\":"
-                    +td.value(Key._DirName_)+"/index.html]" + sep);
+        /**
+         * starts listing directories which will be needed.
+         * @param dirs directories to list
+         */
+        void listAhead(ArrayList<File> dirs) {
+            if( pool == null )
+                return;
+            for( final File dir : dirs ) {
+                if( ahead.containsKey(dir) )
+                    continue;
+                ahead.put(dir, pool.submit(new Callable<Files.Listing>() {
+                    public Files.Listing call() {
+                        return Files.list(dir);
+                    }
+                }));
+            }
         }
-        define(Key._SubDirList_, sb.toString().trim());
-        define(Key._SubDirListLinked_, sbl.substring(0,sbl.length()-sep.length()+1));
         
-        if( !(maxDepth == 0 || (maxDepth > 0 && curDepth >= maxDepth)) ) {
-            for( TaskDir td : subdirs ) {
-                td.makeTree(curDepth+1, maxDepth, dirList);
+        /**
+         * @param dir directory to list
+         * @return the directory's listing, waiting for it if it was started ahead
+         */
+        Files.Listing list(File dir) {
+            Future<Files.Listing> listing = ahead.remove(dir);
+            if( listing == null )
+                return Files.list(dir);
+            try {
+                return listing.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return Files.list(dir);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if( cause instanceof RuntimeException )
+                    throw (RuntimeException) cause;
+                if( cause instanceof Error )
+                    throw (Error) cause;
+                throw new IllegalStateException(cause);
             }
         }
-                
-     }
+        
+        void shutdown() {
+            if( pool != null )
+                pool.shutdownNow();
+        }
+    }
     
     public String getDescription() {
         return "directory "+getPath();
     }
     
+    BeanShell.Scope getBshScope() {
+        return bshScope == null ? super.getBshScope() : bshScope;
+    }
+    
     public File getLocalFile(String filename) {
-        File f = new File( file, filename );
-        return f.exists()? f : null;
+        return listing().exists(filename)? new File( file, filename ) : null;
+    }
+    
+    /**
+     * @return the entries of this task's directory, listed the first time they are needed
+     */
+    Files.Listing listing() {
+        if( listing == null )
+            listing = Files.list(file);
+        return listing;
     }
     
     public ArrayList<TaskFile> getSources() {
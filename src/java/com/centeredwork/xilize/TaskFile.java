@@ -6,15 +6,23 @@
 
 package com.centeredwork.xilize;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Properties;
 
 /**
@@ -33,9 +41,24 @@ public class TaskFile extends Task {
     // list of raw blocks, not yet assembled into parse tree
     protected ArrayList<Block> rawBlocks = new ArrayList<Block>();
     
+    // stamps of the files the output depends on, see Manifest
+    protected LinkedHashMap<String,String> dependencies = new LinkedHashMap<String,String>();
+    private boolean failed;     // an error was reported while translating
+    protected Metrics.Source stats; // null unless collecting metrics
+    
     public TaskFile(Task parent, File file) {
+        this(parent, file, null);
+    }
+    
+    /**
+     * @param shared task whose registries this task uses, see {@link Task#share(Task)},
+     * or null
+     */
+    TaskFile(Task parent, File file, Task shared) {
         super(parent);
         this.file = file;
+        if( shared != null )
+            share(shared);  // before the catalog looks up _IdPrefix_
         catalog = new Catalog(this);
     }
     
@@ -50,6 +73,37 @@ public class TaskFile extends Task {
     }
     
     public File getFile() { return file; }
+    
+    /**
+     * notes a file the output of this task depends on, used by incremental translation.
+     * @param f the file, need not exist
+     */
+    public void addDependency(File f) {
+        addDependency(f.getAbsolutePath(), Manifest.stamp(f));
+        if( stats != null )
+            stats.addBytesIn(f.length());
+    }
+    
+    void addDependency(String key, String stamp) {
+        dependencies.put(key, stamp);
+    }
+    
+    /**
+     * dependencies of the ancestor tasks, known before this task is translated.
+     */
+    private LinkedHashMap<String,String> inheritedDependencies() {
+        LinkedHashMap<String,String> deps = new LinkedHashMap<String,String>();
+        for( Task t = parent; t != null; t = t.getParent() ) {
+            if( t instanceof TaskFile )
+                deps.putAll(((TaskFile)t).dependencies);
+        }
+        return deps;
+    }
+    
+    public void _error(String msg) {
+        failed = true;
+        super._error(msg);
+    }
 
     
     static class Include extends TaskFile {
@@ -57,12 +111,15 @@ public class TaskFile extends Task {
         int lineNum;
         
         public Include(TaskFile tf, File file, int lineNum, ArrayList<Block> rawBlocks) {
-            super(tf, file);
+            super(tf, file, tf);
             this.lineNum = lineNum;
             this.rawBlocks = rawBlocks;
-            defReg = parent.defReg;
-            abbrevReg = parent.abbrevReg;
-            sigReg = parent.sigReg;
+            dependencies = tf.dependencies;
+            stats = tf.stats;
+        }
+        
+        public void _error(String msg) {
+            parent._error(msg);
         }
         
         public String getDescription() {
@@ -72,7 +129,7 @@ public class TaskFile extends Task {
         public void xilize() throws XilizeException {
             
             try {
-                BlockReader br = new BlockReader(this, new BufferedReader(new FileReader(file)));
+                BlockReader br = new BlockReader(this, env.includeLines(this, file));
                 getRawBlocks( br );
                 br.close();
             } catch (IOException e) {
@@ -101,7 +158,9 @@ public class TaskFile extends Task {
             
             super(null, configFile);
             env = new Env(reporter, bsh);
-            Key.addDefaultKV(defReg);
+            HashMap<String,String> defaults = new HashMap<String,String>();
+            Key.addDefaultKV(defaults);
+            define(defaults);
             Signature.addStdSigSet(this);
             
         }
@@ -131,8 +190,18 @@ public class TaskFile extends Task {
         if( isHalted() ) {
             throw new XilizeException(Xilize2.ExitCode.UserHalt, this, "user interrupt");
         }
+        Manifest manifest = env.getManifest();
+        if( manifest != null && isGeneratingOutput()
+                && manifest.isCurrent(file, inheritedDependencies()) ) {
+            debug("unchanged: "+file);
+            return;
+        }
+        Metrics metrics = env.getMetrics();
+        if( metrics != null && isGeneratingOutput() )
+            stats = metrics.startSource(file);
+        addDependency(file);
         try {
-            BlockReader br = new BlockReader(this, new BufferedReader(new FileReader(file)));
+            BlockReader br = new BlockReader(this, Files.decode(file, Files.charset(this)));
             xilize(br);
             br.close();
         } catch (IOException e) {
@@ -177,7 +246,9 @@ public class TaskFile extends Task {
                             String label = markup(b.linesAsString());
                             define(Key._NaturalLabel_, label);
                             defineDefault(Key.title.name(), label);  //legacy support
-                            b.setSignature(getSignature(value(Key._NaturalSig_)));
+                            Signature sig = getSignature(value(Key._NaturalSig_)).copy();
+                            sig.setMods(this, "");
+                            b.setSignature(sig);
                             break;
                         }
                     }
@@ -185,16 +256,20 @@ public class TaskFile extends Task {
                 
             }
             
+            lap(Metrics.Phase.Read);
+            
             // assemble parse tree
             
             Block root = new Block();
             (new BlockAssembler(this,rawBlocks)).assemble(root);
+            lap(Metrics.Phase.Assemble);
             
             // do directives
             
             for( Block b : root.getChildren() ) {
                 b.exec();
             }
+            lap(Metrics.Phase.Exec);
             
             // add epilog/prolog
             
@@ -224,36 +299,191 @@ public class TaskFile extends Task {
             define(Key._FileNameHtml_, outputFile.getName());
             define(Key._FileNameOutput_, outputFile.getName());
             
+            if( isGeneratingOutput() && isValueTrue(Key._StreamOutput_) ) {
+                
+                stream(root.getChildren());
+                record();
+                if( stats != null )
+                    stats.setBytesOut(outputFile.length());
+                lap(Metrics.Phase.Write);
+                return;
+            }
+            
             for( Block b : root.getChildren() ) {
                 b.translate();
             }
+            lap(Metrics.Phase.Translate);
             
             for( Block b : root.getChildren() ) {
                 b.translateLast(); //  for "toc." etc.
             }
+            lap(Metrics.Phase.TranslateLast);
             
             // write
             
             if( isGeneratingOutput() ) {
-                PrintWriter pw = new PrintWriter( new BufferedWriter( new FileWriter(outputFile) ) );
+                PrintWriter pw = new PrintWriter( new BufferedWriter( new OutputStreamWriter(
+                        new FileOutputStream(outputFile), Files.charset(this) ) ) );
                 for( Block b : root.getChildren() ) {
                     b.write(pw);
                     pw.println();
                 }
                 pw.close();
+                record();
+                if( stats != null )
+                    stats.setBytesOut(outputFile.length());
             }
+            lap(Metrics.Phase.Write);
             
         } catch( XilizeException e ) {
             error(0, e.getMessage());
             throw e;
         } catch( IOException e ) {
             error("error reading/writing source file, trying to continue", e);
+        } finally {
+            if( stats != null ) {
+                env.getMetrics().lookups(resolved.lookups, resolved.misses);
+                env.getMetrics().endSource(stats);
+                stats = null;
+            }
+        }
+    
+    }
+    
+    /**
+     * translates the top level blocks writing each one out as soon as it is
+     * translated, then dropping it.  Blocks whose signatures translate last ("toc.")
+     * cannot be written in order, the output is written to a hidden file in the
+     * same directory and when complete copied to the output file with the late
+     * blocks put in place.  Without such blocks the hidden file is simply renamed.
+     * @param blocks top level blocks
+     * @throws java.io.IOException if the output cannot be written
+     */
+    private void stream(ArrayList<Block> blocks) throws IOException {
+        
+        File temp = new File(outputFile.getParentFile(), "." + outputFile.getName() + ".tmp");
+        Charset charset = Files.charset(this);
+        ArrayList<Block> late = new ArrayList<Block>();
+        ArrayList<Long> offsets = new ArrayList<Long>();
+        
+        try {
+            CountingStream out = new CountingStream( new BufferedOutputStream( new FileOutputStream(temp) ) );
+            PrintWriter pw = new PrintWriter( new BufferedWriter( new OutputStreamWriter(out, charset) ) );
+            for( int i=0; i<blocks.size(); i++ ) {
+                Block b = blocks.get(i);
+                if( b.getSignature().translatesLast() ) {
+                    b.translate();
+                    pw.flush();
+                    late.add(b);
+                    offsets.add(out.getCount());
+                } else {
+                    b.stream(pw);
+                    blocks.set(i, null);
+                }
+                pw.println();
+            }
+            pw.close();
+            if( pw.checkError() )
+                throw new IOException("write failed: " + temp.getPath());
+            lap(Metrics.Phase.Translate);
+            
+            for( Block b : late ) {
+                b.translateLast(); //  for "toc." etc.
+            }
+            lap(Metrics.Phase.TranslateLast);
+            
+            if( late.isEmpty() ) {
+                outputFile.delete();
+                if( !temp.renameTo(outputFile) )
+                    throw new IOException("cannot rename " + temp.getPath() + " to " + outputFile.getPath());
+                return;
+            }
+            
+            // copy, putting the late blocks in place
+            
+            InputStream in = new BufferedInputStream( new FileInputStream(temp) );
+            OutputStream os = new BufferedOutputStream( new FileOutputStream(outputFile) );
+            try {
+                byte[] buf = new byte[8192];
+                long pos = 0;
+                for( int i=0; i<late.size(); i++ ) {
+                    pos = copy(in, os, offsets.get(i) - pos, buf) + pos;
+                    PrintWriter writer = new PrintWriter( new OutputStreamWriter(os, charset) );
+                    late.get(i).write(writer);
+                    writer.flush();
+                }
+                copy(in, os, Long.MAX_VALUE, buf);
+            } finally {
+                in.close();
+                os.close();
+            }
+        
+        } finally {
+            temp.delete();
         }
+    }
+    
+    private static long copy(InputStream in, OutputStream out, long count, byte[] buf) throws IOException {
+        long copied = 0;
+        while( copied < count ) {
+            int n = in.read(buf, 0, (int) Math.min(buf.length, count - copied));
+            if( n == -1 )
+                break;
+            out.write(buf, 0, n);
+            copied += n;
+        }
+        return copied;
+    }
+    
+    /**
+     * counts the bytes written through it.
+     */
+    private static class CountingStream extends FilterOutputStream {
         
+        private long count;
+        
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+        
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+        
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+        
+        long getCount() { return count; }
+    }
+    
+    private void lap(Metrics.Phase phase) {
+        if( stats != null )
+            stats.lap(phase);
     }
     
    
         
+    /**
+     * records this task's dependencies in the manifest, or forgets the source if
+     * errors were reported so it is translated again next time.
+     */
+    private void record() {
+        Manifest manifest = env.getManifest();
+        if( manifest == null )
+            return;
+        if( failed ) {
+            manifest.forget(file);
+        } else {
+            LinkedHashMap<String,String> deps = inheritedDependencies();
+            deps.putAll(dependencies);
+            deps.put(outputFile.getAbsolutePath(), Manifest.stamp(outputFile));
+            manifest.record(file, deps);
+        }
+    }
+    
     /**
      * read blocks from an include file into this task's raw block list.
      *
@@ -270,6 +500,7 @@ public class TaskFile extends Task {
     
     void include(int line, File path ) throws XilizeException {
         
+        addDependency(path);
         (new TaskFile.Include(this, path, line, rawBlocks)).xilize();
     }    
     
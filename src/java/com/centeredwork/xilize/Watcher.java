@@ -0,0 +1,118 @@
+/*
+ Copyright (c) 2004 - 2006 Andy Streich
+ Distributed under the GNU General Public License available at http://www.gnu.org/licenses/gpl.html,
+ a copy of which is provided with the Xilize source code.
+ */
+
+package com.centeredwork.xilize;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory tree for changes so Xilize can stay running between
+ * translations, see the <CODE>--watch</CODE> command line option.
+ *
+ * <p>Changes to output files, to the build manifest and to files passed to
+ * {@link #ignore(File)}, such as the metrics file, are ignored, everything else
+ * wakes up the caller which then translates incrementally.
+ * @see Manifest
+ */
+class Watcher {
+    
+    // a burst of changes, as made by an editor saving a file, ends when nothing
+    // happens for this long
+    private static final long QUIET_MILLIS = 100;
+    
+    private WatchService service;
+    private HashMap<WatchKey,Path> dirs = new HashMap<WatchKey,Path>();
+    private HashSet<Path> ignored = new HashSet<Path>();
+    
+    /**
+     * creates a watcher for a directory tree.
+     * @param root top directory to watch
+     * @throws java.io.IOException if the file system cannot be watched
+     */
+    Watcher(File root) throws IOException {
+        service = root.toPath().getFileSystem().newWatchService();
+        register(root);
+    }
+    
+    private void register(File dir) throws IOException {
+        Path path = dir.toPath();
+        WatchKey key = path.register(service,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        dirs.put(key, path);
+        for( File sub : Files.listDirs(dir, "[^.].*") ) {
+            register(sub);
+        }
+    }
+    
+    /**
+     * ignores changes to a file the translation itself writes.
+     * @param f file to ignore
+     */
+    void ignore(File f) {
+        ignored.add(f.toPath().toAbsolutePath().normalize());
+    }
+    
+    /**
+     * waits until something changes in the tree and the burst of changes is over.
+     * @param outputExtension extension of generated files, changes to which are ignored
+     * @throws java.lang.InterruptedException if interrupted while waiting
+     */
+    void awaitChange(String outputExtension) throws InterruptedException {
+        
+        boolean changed = false;
+        WatchKey key = service.take();
+        while( key != null ) {
+            changed |= process(key, "." + outputExtension);
+            key = changed ?
+                service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS) :
+                service.take();
+        }
+    }
+    
+    private boolean process(WatchKey key, String outputSuffix) {
+        
+        boolean changed = false;
+        Path dir = dirs.get(key);
+        for( WatchEvent<?> event : key.pollEvents() ) {
+            
+            if( event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null ) {
+                changed = true;
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            String name = path.getFileName().toString();
+            if( name.startsWith(".") || name.endsWith("~")
+                    || name.endsWith(outputSuffix) || name.equals(Manifest.FILENAME)
+                    || ignored.contains(path.toAbsolutePath().normalize()) ) {
+                continue;
+            }
+            changed = true;
+            
+            File f = path.toFile();
+            if( event.kind() == StandardWatchEventKinds.ENTRY_CREATE && f.isDirectory() ) {
+                try {
+                    register(f);
+                } catch (IOException ex) {
+                    ;   // directory went away again
+                }
+            }
+        }
+        if( !key.reset() )
+            dirs.remove(key);
+        return changed;
+    }
+}
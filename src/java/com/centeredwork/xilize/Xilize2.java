@@ -101,6 +101,25 @@ public class Xilize2 extends TaskFile implements Runnable {
             }
             
         }
+        Manifest manifest = null;
+        if( subtask instanceof TaskDir && isValueTrue(Key._Incremental_) ) {
+            manifest = new Manifest(subtask.getFile());
+            try {
+                manifest.load();
+            } catch (IOException ex) {
+                warning("cannot read build manifest, translating all files: "+ex.getMessage());
+            }
+            if( !manifest.checkInputs(Manifest.inputsStamp(masterTask.getFile(), masterTask, this)) )
+                debug("definitions, master config or engine changed, translating all files");
+        }
+        env.setManifest(manifest);
+        
+        Metrics metrics = null;
+        if( isValueTrue(Key._Metrics_) || isDefined(Key._MetricsFile_) ) {
+            metrics = new Metrics();
+        }
+        env.setMetrics(metrics);
+        
         // todo:  dir-oriented tasks run in separate thread when not
         //      run from the command line
         try {
@@ -108,6 +127,32 @@ public class Xilize2 extends TaskFile implements Runnable {
         } catch (XilizeException ex) {
             resultCode = ex.getCode();
         }
+        
+        if( manifest != null ) {
+            try {
+                manifest.save();
+            } catch (IOException ex) {
+                error("cannot write build manifest "+manifest.getFile(), ex);
+            }
+            env.setManifest(null);
+        }
+        if( metrics != null ) {
+            metrics.finish();
+            Reporter reporter = env.getReporter();
+            if( reporter instanceof MetricsReporter )
+                ((MetricsReporter)reporter).metrics(metrics);
+            else
+                reporter.report(metrics.summary(10));
+            if( isDefined(Key._MetricsFile_) ) {
+                File f = new File(value(Key._MetricsFile_));
+                try {
+                    metrics.writeJson(f);
+                } catch (IOException ex) {
+                    error("cannot write metrics file "+f, ex);
+                }
+            }
+            env.setMetrics(null);
+        }
         subtask = null;
         return getResultCode();
     }
@@ -237,6 +282,11 @@ public class Xilize2 extends TaskFile implements Runnable {
         return "xilize task";
     }
     
+    BeanShell.Scope getBshScope() {
+        // root.xilconfig belongs to the directory being translated
+        return subtask instanceof TaskDir ? subtask.getBshScope() : super.getBshScope();
+    }
+    
     public void xilize() throws XilizeException {
         throw new IllegalStateException("use one of the xilizeXXXX() methods");
     }
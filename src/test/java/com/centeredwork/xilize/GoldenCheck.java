@@ -0,0 +1,267 @@
+/*
+ Copyright (c) 2004 - 2006 Andy Streich
+ Distributed under the GNU General Public License available at http://www.gnu.org/licenses/gpl.html,
+ a copy of which is provided with the Xilize source code.
+ */
+
+package com.centeredwork.xilize;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checks the engine's output against the golden corpus in <CODE>src/test/golden</CODE>,
+ * so changes meant to leave the output alone can be shown to do so.
+ *
+ * <p>Each corpus file holds cases, one line each, in the order:
+ *
+ * <PRE>    # comment
+ *    mode. phrase            (or blocks, applies to the cases that follow)
+ *    define. author Jane     (a key defined for the cases that follow)
+ *    in. input
+ *    out. expected output
+ *    log. expected warnings and errors, if any</PRE>
+ *
+ * Backslashes, line breaks, tabs, characters other than printable ASCII and a
+ * trailing space are escaped as in Java, so the files are plain ASCII.  Phrase
+ * cases translate the input with {@link Xilize2#xilizePhrase(String)}, block cases
+ * with {@link Xilize2#xilizeBlocks(String)}, each in a freshly started engine.
+ *
+ * <p>To build and run it (Leiningen 1 puts the dependencies from project.clj in lib):
+ *
+ * <PRE>    lein deps
+ *    mkdir -p build/test
+ *    javac -cp "lib/*" -d build/test src/java/com/centeredwork/xilize/*.java \
+ *        src/test/java/com/centeredwork/xilize/*.java
+ *    java -cp "build/test:lib/*" com.centeredwork.xilize.GoldenCheck src/test/golden</PRE>
+ *
+ * It lists the cases whose output differs and exits with status 1 if there are any.
+ * With <CODE>-write</CODE> as the first argument it instead rewrites the expected
+ * output of every case from the current engine, for cases added to the corpus or
+ * output changed on purpose.
+ */
+public class GoldenCheck {
+    
+    private static final int MAX_REPORTED = 10;    // differences listed per file
+    
+    /**
+     * collects warnings and errors, drops everything else.
+     */
+    private static class Log extends ReporterStd {
+        
+        StringBuilder sb = new StringBuilder();
+        
+        public synchronized void debug(Object o) {}
+        
+        public synchronized void report(Object o) {}
+        
+        public synchronized void error(Object o) {
+            errors++;
+            append(o);
+        }
+        
+        public synchronized void warn(Object o) {
+            warnings++;
+            append(o);
+        }
+        
+        private void append(Object o) {
+            if( sb.length() > 0 )
+                sb.append('\n');
+            sb.append(o);
+        }
+        
+        synchronized String take() {
+            String s = sb.toString();
+            sb.setLength(0);
+            return s;
+        }
+        
+        public Reporter newInstance() { return this; }
+    }
+    
+    private Log log = new Log();
+    private boolean write;
+    private int cases;
+    private int failures;
+    
+    private GoldenCheck(boolean write) {
+        this.write = write;
+    }
+    
+    public static void main(String[] args) throws IOException {
+        
+        ArrayList<String> list = new ArrayList<String>(Arrays.asList(args));
+        boolean write = !list.isEmpty() && list.get(0).equals("-write");
+        if( write )
+            list.remove(0);
+        if( list.isEmpty() ) {
+            System.err.println("usage: GoldenCheck [-write] file-or-directory ...");
+            System.exit(2);
+        }
+        
+        GoldenCheck check = new GoldenCheck(write);
+        for( String s : list ) {
+            File f = new File(s);
+            if( f.isDirectory() ) {
+                File[] files = f.listFiles();
+                Arrays.sort(files);
+                for( File file : files ) {
+                    if( file.getName().endsWith(".txt") )
+                        check.run(file);
+                }
+            } else {
+                check.run(f);
+            }
+        }
+        Xilize2.shutdown();
+        
+        if( write ) {
+            System.out.println(check.cases + " cases written");
+        } else {
+            System.out.println(check.cases + " cases, " + check.failures + " differ");
+            if( check.failures > 0 )
+                System.exit(1);
+        }
+    }
+    
+    private void run(File file) throws IOException {
+        
+        ArrayList<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while( (line = reader.readLine()) != null )
+                lines.add(line);
+        } finally {
+            reader.close();
+        }
+        
+        ArrayList<String> written = new ArrayList<String>();
+        LinkedHashMap<String,String> defs = new LinkedHashMap<String,String>();
+        boolean blocks = false;
+        int reported = 0;
+        for( int i=0; i<lines.size(); i++ ) {
+            String line = lines.get(i);
+            if( line.startsWith("out. ") || line.startsWith("log. ") ) {
+                continue;   // read along with their input
+            }
+            written.add(line);
+            if( line.startsWith("mode. ") ) {
+                blocks = line.substring(6).trim().equals("blocks");
+            } else if( line.startsWith("define. ") ) {
+                String[] kv = line.substring(8).trim().split("\\s+", 2);
+                defs.put(kv[0], kv.length > 1 ? kv[1] : "");
+            } else if( line.startsWith("in. ") ) {
+                
+                String input = unescape(line.substring(4));
+                String output = translate(input, blocks, defs);
+                String warnings = log.take();
+                cases++;
+                if( write ) {
+                    written.add("out. " + escape(output));
+                    if( warnings.length() > 0 )
+                        written.add("log. " + escape(warnings));
+                    continue;
+                }
+                
+                String expected = i+1 < lines.size() && lines.get(i+1).startsWith("out. ") ?
+                    unescape(lines.get(i+1).substring(5)) : null;
+                String expectedLog = i+2 < lines.size() && lines.get(i+2).startsWith("log. ") ?
+                    unescape(lines.get(i+2).substring(5)) : "";
+                if( !output.equals(expected) || !warnings.equals(expectedLog) ) {
+                    failures++;
+                    if( reported++ < MAX_REPORTED ) {
+                        System.out.println(file + ":" + (i+1) + ": output differs");
+                        System.out.println("  in.  " + escape(input));
+                        System.out.println("  out. " + (expected == null ? "(none)" : escape(expected)));
+                        System.out.println("  got. " + escape(output));
+                        if( !warnings.equals(expectedLog) ) {
+                            System.out.println("  log. " + escape(expectedLog));
+                            System.out.println("  got. " + escape(warnings));
+                        }
+                    }
+                }
+            }
+        }
+        
+        if( write ) {
+            PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            for( String s : written )
+                pw.println(s);
+            pw.close();
+        }
+    }
+    
+    private String translate(String input, boolean blocks, Map<String,String> defs) {
+        
+        // a fresh engine, translations may leave state behind in the master task,
+        // and a task without a file, named so messages have a location
+        Xilize2.startup(log, new BeanShell(), new HashMap<String,String>());
+        Xilize2 x = new Xilize2() {
+            public String getPath() { return "doc"; }
+        };
+        for( Map.Entry<String,String> e : defs.entrySet() )
+            x.define(e.getKey(), e.getValue());
+        try {
+            String s = blocks ? x.xilizeBlocks(input) : x.xilizePhrase(input);
+            return String.valueOf(s);
+        } catch( Throwable t ) {
+            return "exception " + t.getClass().getName();
+        }
+    }
+    
+    static String escape(String s) {
+        StringBuilder sb = new StringBuilder();
+        for( int i=0; i<s.length(); i++ ) {
+            char c = s.charAt(i);
+            switch( c ) {
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    // a trailing space too, editors strip those
+                    if( c < 0x20 || c > 0x7e || c == ' ' && i == s.length()-1 )
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+    
+    static String unescape(String s) {
+        StringBuilder sb = new StringBuilder();
+        for( int i=0; i<s.length(); i++ ) {
+            char c = s.charAt(i);
+            if( c != '\\' || i+1 == s.length() ) {
+                sb.append(c);
+                continue;
+            }
+            c = s.charAt(++i);
+            switch( c ) {
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(s.substring(i+1, i+5), 16));
+                    i += 4;
+                    break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ Copyright (c) 2004 - 2006 Andy Streich
+ Distributed under the GNU General Public License available at http://www.gnu.org/licenses/gpl.html,
+ a copy of which is provided with the Xilize source code.
+ */
+
+package com.centeredwork.xilize;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Checks that translating a directory concurrently gives the same output as
+ * translating it with one thread.
+ *
+ * <p>It writes a small site to a temporary directory, translates it once with
+ * one thread and then several times with <CODE>_Threads_</CODE> set to 4, and
+ * compares every <CODE>.html</CODE> file byte for byte.  The pages mix labels,
+ * inline markup and <CODE>pre.</CODE> blocks, so state one translation leaves
+ * in a pooled engine shows up as a difference in the next page it translates.
+ * Build it as described for {@link GoldenCheck}, then:
+ *
+ * <PRE>    java -cp "build/test:lib/*" com.centeredwork.xilize.ThreadsCheck</PRE>
+ *
+ * It lists the pages whose output differs and exits with status 1 if there are any.
+ */
+public class ThreadsCheck {
+    
+    private static final int PAGES = 40;
+    private static final int RUNS = 3;          // concurrent runs compared to the serial one
+    private static final int MAX_REPORTED = 10;
+    
+    public static void main(String[] args) throws IOException {
+        
+        File dir = File.createTempFile("xilize", ".threads");
+        dir.delete();
+        dir.mkdir();
+        
+        int failures = 0;
+        try {
+            writeSite(dir);
+            Map<String,byte[]> serial = translate(dir, "1");
+            for( int run=0; run<RUNS; run++ ) {
+                Map<String,byte[]> threaded = translate(dir, "4");
+                for( Map.Entry<String,byte[]> e : serial.entrySet() ) {
+                    byte[] b = threaded.get(e.getKey());
+                    if( b == null || !Arrays.equals(b, e.getValue()) ) {
+                        if( failures++ < MAX_REPORTED )
+                            System.out.println(e.getKey() + ": output differs in run " + (run+1));
+                    }
+                }
+            }
+            System.out.println(serial.size() + " pages, " + RUNS + " runs, " + failures + " differ");
+        } finally {
+            delete(dir);
+            Xilize2.shutdown();
+        }
+        if( failures > 0 )
+            System.exit(1);
+    }
+    
+    private static void writeSite(File dir) throws IOException {
+        
+        for( int i=1; i<=PAGES; i++ ) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Page ").append(i).append(" label\nsecond label line\n\n");
+            sb.append("Some *text* here, \"a link\":page").append(i).append(".html and _emphasis_.\n\n");
+            sb.append("* one\n* two\n\n");
+            if( i % 3 == 0 )
+                sb.append("pre. keep\n  this\n");
+            else if( i % 3 == 1 )
+                sb.append("bc. code\n  block\n");
+            write(new File(dir, String.format("p%02d.xil", i)), sb.toString());
+        }
+    }
+    
+    /**
+     * translates the directory, returns the output of each page and deletes it.
+     */
+    private static Map<String,byte[]> translate(File dir, String threads) throws IOException {
+        
+        HashMap<String,String> map = new HashMap<String,String>();
+        map.put(Key._Threads_.name(), threads);
+        Xilize2.startup(new Quiet(), new BeanShell(), map);
+        Xilize2 x = new Xilize2();
+        x.xilizeDirectory(dir, dir);
+        x.translate();
+        
+        TreeMap<String,byte[]> out = new TreeMap<String,byte[]>();
+        for( File f : dir.listFiles() ) {
+            if( f.getName().endsWith(".html") ) {
+                out.put(f.getName(), read(f));
+                f.delete();
+            }
+        }
+        return out;
+    }
+    
+    /**
+     * drops everything but errors.
+     */
+    private static class Quiet extends ReporterStd {
+        public synchronized void debug(Object o) {}
+        public synchronized void report(Object o) {}
+        public synchronized void warn(Object o) { warnings++; }
+        public Reporter newInstance() { return this; }
+    }
+    
+    private static void write(File f, String s) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+        try {
+            w.write(s);
+        } finally {
+            w.close();
+        }
+    }
+    
+    private static byte[] read(File f) throws IOException {
+        byte[] b = new byte[(int) f.length()];
+        InputStream in = new FileInputStream(f);
+        try {
+            int n = 0;
+            while( n < b.length ) {
+                int r = in.read(b, n, b.length - n);
+                if( r < 0 )
+                    break;
+                n += r;
+            }
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+    
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if( files != null ) {
+            for( File c : files )
+                delete(c);
+        }
+        f.delete();
+    }
+}